@@ -0,0 +1,61 @@
+import java.util.function.ToLongFunction;
+
+/**
+ * Aggregate of items kept for every subtree of OS_RBTree alongside its size. <br>
+ * <br>
+ * Values of items are combined as a monoid: combine must be associative, and identity must be its identity element.
+ * Combine is always applied in item order, so it need not be commutative. <br>
+ * <br>
+ * @param <T> type of item
+ */
+public interface Aggregate<T>
+{
+    long identity();
+    long value(T item);
+    long combine(long a, long b);
+
+    /**
+     * Sum of weights; OS_RBTree.selectByWeight needs non-negative weights
+     * @param weight weight of item
+     * @return aggregate of sum
+     */
+    static <T> Aggregate<T> sum(ToLongFunction<? super T> weight)
+    {
+        return new Aggregate<T>()
+        {
+            public long identity()                  { return 0;                        }
+            public long value(T item)               { return weight.applyAsLong(item); }
+            public long combine(long a, long b)     { return a + b;                    }
+        };
+    }
+
+    /**
+     * Minimum of values; identity is Long.MAX_VALUE
+     * @param value value of item
+     * @return aggregate of minimum
+     */
+    static <T> Aggregate<T> min(ToLongFunction<? super T> value)
+    {
+        return new Aggregate<T>()
+        {
+            public long identity()                  { return Long.MAX_VALUE;          }
+            public long value(T item)               { return value.applyAsLong(item); }
+            public long combine(long a, long b)     { return Math.min(a, b);          }
+        };
+    }
+
+    /**
+     * Maximum of values; identity is Long.MIN_VALUE
+     * @param value value of item
+     * @return aggregate of maximum
+     */
+    static <T> Aggregate<T> max(ToLongFunction<? super T> value)
+    {
+        return new Aggregate<T>()
+        {
+            public long identity()                  { return Long.MIN_VALUE;          }
+            public long value(T item)               { return value.applyAsLong(item); }
+            public long combine(long a, long b)     { return Math.max(a, b);          }
+        };
+    }
+}
@@ -0,0 +1,64 @@
+import java.util.Arrays;
+
+/**
+ * Structure of Order statistics Red-Black tree whose nodes are indices into parallel primitive arrays. <br>
+ * <br>
+ * Linking, coloring, and sizing of nodes is done by IndexedOS_RBTree; this class stores node fields in arrays,
+ * which subclass may read directly in its searches. Items are stored by subclass, in arrays grown with these.
+ */
+abstract class ArrayOS_RBTree extends IndexedOS_RBTree
+{
+    static final int DEFAULT_CAPACITY = 16;
+
+    boolean[] red;
+    int[] parent, left, right, size;
+    private int treeSize_ = 0;
+    private int freeHead_ = NIL;    // head of free list; NIL if free list is empty
+    private int nextUnused_ = 1;    // nodes at or above this index have never been used
+
+    // Constructor
+    ArrayOS_RBTree(int capacity)
+    {
+        capacity = Math.max(capacity, 1) + 1; // index 0 is NIL
+        red = new boolean[capacity];
+        parent = new int[capacity];
+        left = new int[capacity];
+        right = new int[capacity];
+        size = new int[capacity];
+    }
+
+    // Item operation of subclass
+    abstract void growItems(int capacity);  // grow item array to given capacity
+
+    // Storage
+    @Override final int left(int node)                  { return left[node];    }
+    @Override final int right(int node)                 { return right[node];   }
+    @Override final int parent(int node)                { return parent[node];  }
+    @Override final int size(int node)                  { return size[node];    }
+    @Override final boolean red(int node)               { return red[node];     }
+    @Override final void setLeft(int node, int x)       { left[node] = x;       }
+    @Override final void setRight(int node, int x)      { right[node] = x;      }
+    @Override final void setParent(int node, int x)     { parent[node] = x;     }
+    @Override final void setSize(int node, int x)       { size[node] = x;       }
+    @Override final void setRed(int node, boolean x)    { red[node] = x;        }
+
+    @Override public final int treeSize()               { return treeSize_;     }
+    @Override final void setTreeSize(int treeSize)      { treeSize_ = treeSize; }
+    @Override final int freeHead()                      { return freeHead_;     }
+    @Override final void setFreeHead(int node)          { freeHead_ = node;     }
+    @Override final int nextUnused()                    { return nextUnused_;   }
+    @Override final void setNextUnused(int node)        { nextUnused_ = node;   }
+    @Override final int capacity()                      { return size.length;   }
+
+    @Override
+    final void grow()
+    {
+        int capacity = 2 * size.length;
+        red = Arrays.copyOf(red, capacity);
+        parent = Arrays.copyOf(parent, capacity);
+        left = Arrays.copyOf(left, capacity);
+        right = Arrays.copyOf(right, capacity);
+        size = Arrays.copyOf(size, capacity);
+        growItems(capacity);
+    }
+}
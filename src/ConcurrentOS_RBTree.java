@@ -0,0 +1,147 @@
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Thread-safe Order statistics Red-Black tree, wrapping OS_RBTree with a StampedLock. <br>
+ * <br>
+ * Writers (Insert, Delete) are serialized by the write lock. Readers (Select, Rank, Contains) first walk
+ * the tree without any lock, then validate that no writer has run meanwhile; only if validation fails,
+ * they walk again holding the read lock. So readers do not write shared memory and scale with cores
+ * as long as writes are rare. <br>
+ * <br>
+ * Since rotation swaps items between nodes, a reader racing a writer may see an item at a wrong position,
+ * follow a node being relinked, or reach a recycled node whose item is null. Since nodes are published by
+ * plain writes, it may also reach a new node whose children are not yet visible (null). Such a walk is bounded
+ * by the height of any valid tree, checks every node and item for null before using it, and its result is
+ * discarded by validation (see OS_RBTree.optimisticSelect). For the same reason, the wrapped tree does not
+ * use finger search or record metrics.
+ * @param <T>
+ */
+public class ConcurrentOS_RBTree<T extends Comparable<T>>
+{
+    private final OS_RBTree<T> tree_;
+    private final StampedLock lock_ = new StampedLock();
+
+    // Constructors
+    public ConcurrentOS_RBTree() { this(new OS_RBTree<>()); }
+
+    /**
+     * @param tree tree to wrap; it must not be accessed other than through this wrapper afterward
+     */
+    public ConcurrentOS_RBTree(OS_RBTree<T> tree)
+    {
+        tree_ = tree;
+        tree_.setFingerSearch(false);   // select and rank must not modify tree under read lock
+        tree_.disableMetrics();         // nor record metrics
+        tree_.setShared();
+    }
+
+    /**
+     * Insert x in tree if x is not in tree
+     * @param x item to insert
+     * @return x if x is not in tree (or tree is multiset), otherwise null
+     */
+    public T insert(T x)
+    {
+        long stamp = lock_.writeLock();
+        try { return tree_.insert(x); }
+        finally { lock_.unlockWrite(stamp); }
+    }
+
+    /**
+     * Delete x from tree if x is in tree
+     * @param x item to delete
+     * @return x if x is in tree, otherwise null
+     */
+    public T delete(T x)
+    {
+        long stamp = lock_.writeLock();
+        try { return tree_.delete(x); }
+        finally { lock_.unlockWrite(stamp); }
+    }
+
+    /**
+     * Clear tree
+     */
+    public void clear()
+    {
+        long stamp = lock_.writeLock();
+        try { tree_.clear(); }
+        finally { lock_.unlockWrite(stamp); }
+    }
+
+    /**
+     * Select i-th item in tree
+     * @param i order, starting from 1
+     * @return i-th item if i is equal or less than the size of tree, otherwise null
+     */
+    public T select(int i)
+    {
+        long stamp = lock_.tryOptimisticRead();
+        if (stamp != 0)
+        {
+            T item = tree_.optimisticSelect(i);
+            if (lock_.validate(stamp)) return item;
+        }
+        stamp = lock_.readLock();
+        try { return tree_.select(i); }
+        finally { lock_.unlockRead(stamp); }
+    }
+
+    /**
+     * Get rank of x in tree
+     * @param x item to get its rank
+     * @return rank of x if x is in tree, otherwise 0
+     */
+    public int rank(T x)
+    {
+        long stamp = lock_.tryOptimisticRead();
+        if (stamp != 0)
+        {
+            int r = tree_.optimisticRank(x);
+            if (lock_.validate(stamp)) return r;
+        }
+        stamp = lock_.readLock();
+        try { return tree_.rank(x); }
+        finally { lock_.unlockRead(stamp); }
+    }
+
+    /**
+     * Check whether x is in tree
+     * @param x item to find
+     * @return true iff x is in tree
+     */
+    public boolean contains(T x)
+    {
+        long stamp = lock_.tryOptimisticRead();
+        if (stamp != 0)
+        {
+            boolean found = tree_.optimisticContains(x);
+            if (lock_.validate(stamp)) return found;
+        }
+        stamp = lock_.readLock();
+        try { return tree_.contains(x); }
+        finally { lock_.unlockRead(stamp); }
+    }
+
+    /**
+     * Get size of tree
+     * @return number of items
+     */
+    public int treeSize()
+    {
+        long stamp = lock_.tryOptimisticRead();
+        int size = tree_.treeSize();
+        if (lock_.validate(stamp)) return size;
+        stamp = lock_.readLock();
+        try { return tree_.treeSize(); }
+        finally { lock_.unlockRead(stamp); }
+    }
+
+    @Override
+    public String toString()
+    {
+        long stamp = lock_.readLock();
+        try { return tree_.toString(); }
+        finally { lock_.unlockRead(stamp); }
+    }
+}
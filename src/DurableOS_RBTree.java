@@ -0,0 +1,398 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Durable Order statistics Red-Black tree: OS_RBTree whose Insert and Delete are kept in a write-ahead log. <br>
+ * <br>
+ * Insert and Delete change the tree in memory and append the operation to a batch; sync writes the batch
+ * as one frame and forces it to storage once, so that the cost of force is shared by all operations in the
+ * batch (group commit). When threads call sync concurrently, one of them commits the operations of all,
+ * and the others return without forcing again. Operations not yet synced may be lost on crash. <br>
+ * <br>
+ * If writing a frame fails, the log is truncated back and its operations return to the batch for the next sync.
+ * If force fails, or the log cannot be truncated back, the log may not match the tree: Insert, Delete, and sync
+ * throw until a checkpoint succeeds, which writes the whole tree again. <br>
+ * <br>
+ * checkpoint writes a snapshot (see OS_RBTree.writeSnapshot) and truncates the log. Recovery in open loads
+ * the snapshot and replays the log; a frame torn by crash is detected by its checksum, and the log is
+ * truncated there. <br>
+ * <br>
+ * Files in directory: <br>
+ *      snapshot - generation (8 bytes), followed by snapshot of tree <br>
+ *      log      - magic, version, generation, followed by frames of (length, CRC32, operations) <br>
+ * Each checkpoint starts a new generation. A log older than the snapshot, left by a crash during checkpoint,
+ * has all its operations in the snapshot already, and is discarded instead of replayed.
+ * @param <T>
+ */
+public class DurableOS_RBTree<T extends Comparable<T>> implements Closeable
+{
+    static final String SNAPSHOT = "snapshot", LOG = "log";
+    private static final int LOG_MAGIC = 0x4F53574C;    // "OSWL"
+    private static final int LOG_VERSION = 1;
+    private static final int LOG_HEADER_BYTES = 16;     // magic, version, generation
+    private static final int FRAME_HEADER_BYTES = 8;    // length, CRC32 of operations
+    private static final byte INSERT = 'I', DELETE = 'D';
+
+    private final Path dir_;
+    private final SnapshotCodec<T> codec_;
+    private final OS_RBTree<T> tree_;
+    private final FileChannel log_;
+    private long generation_;
+
+    private final Object lock_ = new Object();          // guards tree_, batch_, appended_, and generation_
+    private final ByteArrayOutputStream batch_ = new ByteArrayOutputStream();
+    private final DataOutputStream batchOut_ = new DataOutputStream(batch_);
+    private long appended_ = 0;                         // number of operations appended
+    private final ReentrantLock commitLock_ = new ReentrantLock();  // guards log_ writes and durable_
+    private long durable_ = 0;                          // number of operations forced to log
+    private volatile IOException failed_ = null;        // failure that left log unlike tree, until checkpoint
+
+    // Constructor
+    private DurableOS_RBTree(Path dir, SnapshotCodec<T> codec, OS_RBTree<T> tree, FileChannel log, long generation)
+    {
+        dir_ = dir;
+        codec_ = codec;
+        tree_ = tree;
+        log_ = log;
+        generation_ = generation;
+    }
+
+    /**
+     * Open tree in directory, recovering it from snapshot and log; directory is created if it does not exist
+     * @param dir directory of tree
+     * @param codec encoding of items in snapshot and log
+     * @param aggregate aggregate to keep for every subtree, or null
+     * @param multiset whether tree is multiset; must be the same as when the snapshot was written
+     * @return recovered tree
+     * @throws IOException if files cannot be read or written, or snapshot is corrupt
+     */
+    public static <T extends Comparable<T>> DurableOS_RBTree<T> open(Path dir, SnapshotCodec<T> codec,
+                                                                     Aggregate<T> aggregate, boolean multiset)
+        throws IOException
+    {
+        Files.createDirectories(dir);
+
+        // load snapshot
+        OS_RBTree<T> tree;
+        long generation = 0;
+        Path snapshot = dir.resolve(SNAPSHOT);
+        if (Files.exists(snapshot))
+        {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshot))))
+            {
+                generation = in.readLong();
+                tree = OS_RBTree.readSnapshot(in, codec, aggregate);
+            }
+            if (tree.isMultiset() != multiset) throw new IOException("Snapshot is " + (multiset ? "not " : "") + "multiset");
+        }
+        else tree = new OS_RBTree<>(aggregate, multiset);
+
+        // replay log of the same generation
+        FileChannel log = FileChannel.open(dir.resolve(LOG), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                           StandardOpenOption.WRITE);
+        try
+        {
+            DurableOS_RBTree<T> durable = new DurableOS_RBTree<>(dir, codec, tree, log, generation);
+            if (durable.readLogHeader()) durable.replay();
+            else durable.resetLog();
+            return durable;
+        }
+        catch (IOException | RuntimeException e)
+        {
+            log.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Open set in directory without aggregate
+     * @see #open(Path, SnapshotCodec, Aggregate, boolean)
+     */
+    public static <T extends Comparable<T>> DurableOS_RBTree<T> open(Path dir, SnapshotCodec<T> codec) throws IOException
+    {
+        return open(dir, codec, null, false);
+    }
+
+    /**
+     * Insert x in tree if x is not in tree; durable after next sync
+     * @param x item to insert
+     * @return x if x is not in tree (or tree is multiset), otherwise null
+     */
+    public T insert(T x)
+    {
+        synchronized (lock_)
+        {
+            checkFailed();
+            T result = tree_.insert(x);
+            if (result != null) append(INSERT, x);  // only operations that change tree are logged
+            return result;
+        }
+    }
+
+    /**
+     * Delete x from tree if x is in tree; durable after next sync
+     * @param x item to delete
+     * @return x if x is in tree, otherwise null
+     */
+    public T delete(T x)
+    {
+        synchronized (lock_)
+        {
+            checkFailed();
+            T result = tree_.delete(x);
+            if (result != null) append(DELETE, x);
+            return result;
+        }
+    }
+
+    public T select(int i)      { synchronized (lock_) { return tree_.select(i);     } }
+    public int rank(T x)        { synchronized (lock_) { return tree_.rank(x);       } }
+    public boolean contains(T x){ synchronized (lock_) { return tree_.contains(x);   } }
+    public int treeSize()       { synchronized (lock_) { return tree_.treeSize();    } }
+
+    /**
+     * Make all operations appended before this call durable, writing them in one frame with one force;
+     * if another thread is syncing, wait for it, since it may commit these operations too
+     * @throws IOException if log cannot be written; operations of the failed batch are not durable, and are
+     *         written by next sync unless tree has failed (see class comment)
+     */
+    public void sync() throws IOException
+    {
+        long target;
+        synchronized (lock_) { target = appended_; }
+        commitLock_.lock();
+        try
+        {
+            if (failed_ != null) throw new IOException("Log has failed; checkpoint or reopen tree", failed_);
+            if (durable_ >= target) return;     // committed by another thread meanwhile
+
+            byte[] operations;
+            long upTo;
+            synchronized (lock_)                // take whole batch, including operations appended meanwhile
+            {
+                operations = batch_.toByteArray();
+                batch_.reset();
+                upTo = appended_;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(operations);
+            ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_BYTES + operations.length);
+            frame.putInt(operations.length).putInt((int) crc.getValue()).put(operations).flip();
+            long start = log_.position();
+            try
+            {
+                while (frame.hasRemaining()) log_.write(frame);
+            }
+            catch (IOException e)
+            {
+                rollback(start, operations);
+                throw e;
+            }
+            try
+            {
+                log_.force(false);
+            }
+            catch (IOException e)               // pages of frame may be dropped, so that a retried force succeeds
+            {
+                failed_ = e;
+                throw e;
+            }
+            durable_ = upTo;
+        }
+        finally
+        {
+            commitLock_.unlock();
+        }
+    }
+
+    /**
+     * Write snapshot of tree and truncate log; all operations so far become durable, even after the log failed <br>
+     * Snapshot is written to a temporary file and renamed, so that a crash leaves either snapshot whole.
+     * @throws IOException if snapshot or log cannot be written
+     */
+    public void checkpoint() throws IOException
+    {
+        commitLock_.lock();
+        try
+        {
+            synchronized (lock_)    // writers wait until snapshot is written
+            {
+                Path temporary = dir_.resolve(SNAPSHOT + ".tmp");
+                try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                            StandardOpenOption.TRUNCATE_EXISTING))
+                {
+                    OutputStream out = Channels.newOutputStream(channel);
+                    new DataOutputStream(out).writeLong(generation_ + 1);
+                    tree_.writeSnapshot(out, codec_);
+                    channel.force(true);
+                }
+                Files.move(temporary, dir_.resolve(SNAPSHOT), StandardCopyOption.ATOMIC_MOVE,
+                           StandardCopyOption.REPLACE_EXISTING);
+                forceDirectory();
+
+                generation_++;
+                batch_.reset();     // operations in batch are in snapshot
+                durable_ = appended_;
+                resetLog();
+                failed_ = null;
+            }
+        }
+        finally
+        {
+            commitLock_.unlock();
+        }
+    }
+
+    /**
+     * Sync and close log; tree must not be used afterward
+     * @throws IOException if log cannot be written or closed
+     */
+    @Override
+    public void close() throws IOException
+    {
+        try
+        {
+            sync();
+        }
+        finally
+        {
+            log_.close();
+        }
+    }
+
+    // throw if log has failed; called holding lock_, so that tree is not changed
+    private void checkFailed()
+    {
+        if (failed_ != null) throw new UncheckedIOException("Log has failed; checkpoint or reopen tree", failed_);
+    }
+
+    /**
+     * Undo failed write of a frame: truncate log to its start, and put its operations back to batch
+     * before those appended meanwhile; if log cannot be truncated, tree fails
+     */
+    private void rollback(long start, byte[] operations)
+    {
+        try
+        {
+            log_.truncate(start);
+            log_.position(start);
+        }
+        catch (IOException e)
+        {
+            failed_ = e;
+        }
+        synchronized (lock_)
+        {
+            byte[] later = batch_.toByteArray();
+            batch_.reset();
+            batch_.write(operations, 0, operations.length);
+            batch_.write(later, 0, later.length);
+        }
+    }
+
+    // append operation to batch; called holding lock_
+    private void append(byte operation, T x)
+    {
+        try
+        {
+            batchOut_.writeByte(operation);
+            codec_.write(batchOut_, null, x);   // operations are independent of each other
+        }
+        catch (IOException e)                   // ByteArrayOutputStream does not throw
+        {
+            throw new UncheckedIOException(e);
+        }
+        appended_++;
+    }
+
+    /**
+     * Read header of log
+     * @return true iff log has valid header of current generation
+     */
+    private boolean readLogHeader() throws IOException
+    {
+        if (log_.size() < LOG_HEADER_BYTES) return false;
+        ByteBuffer header = ByteBuffer.allocate(LOG_HEADER_BYTES);
+        while (header.hasRemaining() && log_.read(header, header.position()) >= 0) ;
+        header.flip();
+        return header.getInt() == LOG_MAGIC && header.getInt() == LOG_VERSION && header.getLong() == generation_;
+    }
+
+    /**
+     * Truncate log to empty log of current generation
+     */
+    private void resetLog() throws IOException
+    {
+        log_.truncate(0);
+        ByteBuffer header = ByteBuffer.allocate(LOG_HEADER_BYTES);
+        header.putInt(LOG_MAGIC).putInt(LOG_VERSION).putLong(generation_).flip();
+        log_.position(0);
+        while (header.hasRemaining()) log_.write(header);
+        log_.force(false);
+    }
+
+    /**
+     * Apply operations of all complete frames in log to tree; log is truncated after the last complete frame
+     */
+    private void replay() throws IOException
+    {
+        long position = LOG_HEADER_BYTES, size = log_.size();
+        ByteBuffer frameHeader = ByteBuffer.allocate(FRAME_HEADER_BYTES);
+        while (size - position >= FRAME_HEADER_BYTES)
+        {
+            frameHeader.clear();
+            readFully(frameHeader, position);
+            int length = frameHeader.getInt(0), checksum = frameHeader.getInt(4);
+            if (length < 0 || length > size - position - FRAME_HEADER_BYTES) break;    // torn frame
+
+            ByteBuffer operations = ByteBuffer.allocate(length);
+            readFully(operations, position + FRAME_HEADER_BYTES);
+            CRC32 crc = new CRC32();
+            crc.update(operations.array());
+            if ((int) crc.getValue() != checksum) break;                            // torn frame
+
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(operations.array()));
+            while (in.available() > 0)
+            {
+                byte operation = in.readByte();
+                T x = codec_.read(in, null);
+                if (operation == INSERT) tree_.insert(x);
+                else if (operation == DELETE) tree_.delete(x);
+                else throw new IOException("Unknown operation in log: " + operation);
+            }
+            position += FRAME_HEADER_BYTES + length;
+        }
+        if (position < size)    // discard torn tail, so that later frames follow complete ones
+        {
+            log_.truncate(position);
+            log_.force(false);
+        }
+        log_.position(position);
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException
+    {
+        while (buffer.hasRemaining())
+            if (log_.read(buffer, position + buffer.position()) < 0) throw new EOFException();
+    }
+
+    // make rename of snapshot durable; not supported on some platforms, where rename is durable by itself
+    private void forceDirectory()
+    {
+        try (FileChannel directory = FileChannel.open(dir_, StandardOpenOption.READ))
+        {
+            directory.force(true);
+        }
+        catch (IOException e)
+        {
+            // ignored
+        }
+    }
+
+    @Override
+    public String toString() { synchronized (lock_) { return tree_.toString(); } }
+}
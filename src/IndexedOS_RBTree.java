@@ -0,0 +1,310 @@
+/**
+ * Structure of Order statistics Red-Black tree whose nodes are int indices into storage given by subclass. <br>
+ * <br>
+ * Index 0 is NIL, and root is stored at left of NIL as in OS_RBTree. <br>
+ * Deleted nodes are kept in a free list (linked through parent) and reused by later insertions,
+ * so that storage grows only when the tree becomes larger than ever before. <br>
+ * <br>
+ * This class links, colors, and sizes nodes through the accessors below; subclass stores node fields
+ * (e.g. in Java arrays, see ArrayOS_RBTree, or in a mapped file, see MappedLongOS_RBTree) and items.
+ * Since rotation swaps items between nodes (see OS_RBTree.rotate), subclass must support swapping and copying items.
+ */
+abstract class IndexedOS_RBTree
+{
+    static final int NIL = 0;
+
+    // Storage of subclass
+    abstract int left(int node);
+    abstract int right(int node);
+    abstract int parent(int node);
+    abstract int size(int node);
+    abstract boolean red(int node);
+    abstract void setLeft(int node, int x);
+    abstract void setRight(int node, int x);
+    abstract void setParent(int node, int x);
+    abstract void setSize(int node, int x);
+    abstract void setRed(int node, boolean x);
+
+    public abstract int treeSize();
+    abstract void setTreeSize(int treeSize);
+    abstract int freeHead();                // head of free list; NIL if free list is empty
+    abstract void setFreeHead(int node);
+    abstract int nextUnused();              // nodes at or above this index have never been used
+    abstract void setNextUnused(int node);
+    abstract int capacity();                // number of nodes storage can hold, including NIL
+    abstract void grow();                   // increase capacity
+
+    // Item operations of subclass
+    abstract void swapItems(int a, int b);  // swap items of node a and node b
+    abstract void copyItem(int to, int from);
+
+    // Accessors
+    final int root() { return left(NIL); }  // root is stored at left of NIL
+
+    // for convenience
+    final int child(int node, boolean isLeft)               { return isLeft ? left(node) : right(node); }
+    final void setChild(int node, int x, boolean isLeft)    { if (isLeft) setLeft(node, x); else setRight(node, x); }
+
+    /**
+     * Allocate node and insert it as child of given node; item of new node should be set by caller
+     * @param node parent of new node, or NIL if tree is empty
+     * @param isLeft whether new node is left of node
+     * @return index of new node
+     */
+    final int insertNode(int node, boolean isLeft)
+    {
+        int child = allocate();
+        setParent(child, node);
+        setLeft(child, NIL);
+        setRight(child, NIL);
+        setSize(child, 1);
+        setTreeSize(treeSize() + 1);
+        if (node == NIL)    // empty tree
+        {
+            setRed(child, false);
+            setLeft(NIL, child);    // new root
+            return child;
+        }
+        setRed(child, true);
+        setChild(node, child, isLeft);
+        do setSize(node, size(node) + 1); while ((node = parent(node)) != NIL);    // adjust node size
+        return child;
+    }
+
+    /**
+     * Complete insertion of new node, whose item is set; called after insertNode
+     * @param node new node
+     */
+    final void fixInsert(int node)
+    {
+        if (red(parent(node))) modify_Insert(node); // double-red problem
+    }
+
+    /**
+     * Delete given node from tree
+     * @param node node to delete
+     */
+    final void deleteNode(int node)
+    {
+        if (treeSize() == 1)    // only (non-NIL) node is root
+        {
+            clear();
+            return;
+        }
+
+        boolean isLeft = (node == left(parent(node)));  // whether node is left of its parent
+        int child;                                      // store non-NIL child, if exists
+        if (right(node) != NIL)
+        {
+            if (left(node) != NIL)                      // has both left and right non-NIL child
+            {
+                int min = right(node);                  // find node with minimum item from right subtree
+                if (isLeft = (left(min) != NIL)) do min = left(min); while (left(min) != NIL);
+                copyItem(node, min);                    // change item
+                node = min;                             // node to be deleted is min
+            }
+            child = right(node);
+        }
+        else child = left(node);    // upon executing above, node to be deleted has one or no child
+
+        boolean toModify = !red(child);                 // whether modification is needed
+        if (toModify) toModify = !red(node);            // modify iff both deleted node and its child are black
+        else setRed(child, false);
+        int p = parent(node);
+        setParent(child, p);                            // parent of NIL is used by modify_Delete
+        setChild(p, child, isLeft);
+        free(node);
+        for (int q = p ; q != NIL ; q = parent(q)) setSize(q, size(q) - 1);   // adjust node size
+        if (toModify) modify_Delete(child, isLeft);     // lacking-black problem
+        setTreeSize(treeSize() - 1);
+    }
+
+    /**
+     * Find node of i-th item
+     * @param i order, starting from 1
+     * @return node of i-th item
+     * @throws IndexOutOfBoundsException if i is not in [1, treeSize()]
+     */
+    final int selectNode(int i)
+    {
+        if (i < 1 || i > treeSize()) throw new IndexOutOfBoundsException("Order: " + i + ", Size: " + treeSize());
+
+        int node = root();
+        int comp;                       // if node has the item looking for, comp = 0
+        while ((comp = i - (size(left(node)) + 1)) != 0)    // rank of node is 1 + left child's size
+        {
+            if (comp > 0)               // node is less than the item looking for
+            {
+                i = comp;               // update i
+                node = right(node);
+            }
+            else node = left(node);     // node is greater than the item looking for
+        }
+        return node;
+    }
+
+    /**
+     * Clear tree; storage is kept for reuse
+     */
+    public void clear()
+    {
+        setLeft(NIL, NIL);
+        setRight(NIL, NIL);
+        setParent(NIL, NIL);
+        setSize(NIL, 0);
+        setRed(NIL, false);
+        setTreeSize(0);
+        setFreeHead(NIL);
+        setNextUnused(1);
+    }
+
+    /**
+     * Modify tree to maintain red-black property; called only if there is double-red problem
+     * @param node (child) node where double-red problem has occurred
+     */
+    private void modify_Insert(int node)
+    {
+        while (true)
+        {
+            int parent = parent(node);
+            int grandParent = parent(parent);
+            boolean isLeft = (parent == left(grandParent));     // whether node's parent is left of grandParent
+            int uncle = child(grandParent, !isLeft);
+            if (red(uncle))     // case 1: s is red
+            {
+                setRed(parent, false);
+                setRed(uncle, false);
+                if (grandParent == root()) return;              // no more iteration is necessary for root
+                setRed(grandParent, true);
+                if (!red(parent(grandParent))) return;
+                node = grandParent;                             // deal with grandParent's problem
+            }
+            else                // case 2: s is black
+            {
+                if (node == child(parent, !isLeft)) rotate(parent, isLeft); // case 2-1 to 2-2
+                rotate(grandParent, !isLeft);                               // case 2-2
+                return;
+            }
+        }
+    }
+
+    /**
+     * Modify tree to maintain red-black property; called only if there is lacking-black problem
+     * @param node (child) node where lacking-black problem has occurred
+     */
+    @SuppressWarnings("fallthrough")    // case *-3 falls into case *-2
+    private void modify_Delete(int node, boolean isLeft)
+    {
+        int parent = parent(node);
+        int sibling, leftCousin, rightCousin, type;
+        while (true)
+        {
+            sibling = child(parent, !isLeft);
+            leftCousin = child(sibling, isLeft);
+            rightCousin = child(sibling, !isLeft);
+            type = (red(leftCousin) ? 0 : 1) + (red(rightCousin) ? 0 : 2);
+            if (red(parent) || type != 3) break;
+
+            if (red(sibling))       // case 2-4 to 1-*
+            {
+                rotate(parent, isLeft);
+                parent = sibling;
+                sibling = leftCousin;
+                leftCousin = child(sibling, isLeft);
+                rightCousin = child(sibling, !isLeft);
+                type = (red(leftCousin) ? 0 : 1) + (red(rightCousin) ? 0 : 2);
+                break;
+            }
+            // case 2-1
+            setRed(sibling, true);
+            if (parent == root()) return;           // root needs no more modification
+            isLeft = (parent == left(parent(parent)));
+            parent = parent(parent);                // deal with parent's problem
+        }
+        switch (type)
+        {
+            case 2:                 // case *-3 to *-2
+                rotate(sibling, !isLeft);
+                rightCousin = child(sibling, !isLeft);
+            case 0:
+            case 1:                 // case *-2
+                setRed(rightCousin, false);
+                rotate(parent, isLeft);
+                break;
+            case 3:                 // case 1-1
+                setRed(parent, false);
+                setRed(sibling, true);
+                break;
+        }
+    }
+
+    /**
+     * Rotate tree maintaining red-black, order statistics, and binary search tree property;
+     * items are swapped between node and child as in OS_RBTree.rotate
+     * @param node (parent) node to rotate
+     * @param isLeft left-rotate if true, otherwise right-rotate
+     */
+    private void rotate(int node, boolean isLeft)
+    {
+        int child = child(node, !isLeft);       // child node to be rotated
+
+        swapItems(node, child);
+
+        // modify pointers
+        setChild(node, child(child, !isLeft), !isLeft);
+        setParent(child(node, !isLeft), node);
+        setChild(child, child(child, isLeft), !isLeft);
+        setChild(child, child(node, isLeft), isLeft);
+        setParent(child(child, isLeft), child);
+        setChild(node, child, isLeft);
+
+        // adjust size
+        setSize(child, size(left(child)) + size(right(child)) + 1);
+    }
+
+    // node allocation
+    private int allocate()
+    {
+        int node = freeHead();
+        if (node != NIL)
+        {
+            setFreeHead(parent(node));
+            return node;
+        }
+        node = nextUnused();
+        if (node == capacity()) grow();
+        setNextUnused(node + 1);
+        return node;
+    }
+
+    private void free(int node)
+    {
+        setParent(node, freeHead());
+        setFreeHead(node);
+    }
+
+    // debug purpose
+    /**
+     * Return true iff all nodes of tree satisfy order statistics and red-black property
+     * @return whether tree is valid
+     */
+    public boolean isValid() { return size(root()) == treeSize() && blackHeight(root()) != -1; }
+
+    /**
+     * Used to check tree properties
+     * @param node node to get black height
+     * @return -1 if node or any of its descendant is invalid, otherwise black height considering node as root
+     */
+    private int blackHeight(int node)
+    {
+        if (node == NIL) return 0;
+        int leftHeight = blackHeight(left(node));
+        int rightHeight = blackHeight(right(node));
+        if (leftHeight == -1 || rightHeight == -1 ||
+            leftHeight != rightHeight ||                                    // red-black property
+            size(node) != size(left(node)) + size(right(node)) + 1 ||      // order statistics
+            (red(node) && (red(left(node)) || red(right(node)))))           // no double-red
+            return -1;
+        else return leftHeight + (red(node) ? 0 : 1);
+    }
+}
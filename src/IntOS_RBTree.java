@@ -0,0 +1,126 @@
+import java.util.Arrays;
+
+/**
+ * Order statistics Red-Black tree of int items that supports following operations: <br>
+ *      Insert - insert an item to tree <br>
+ *      Delete - delete an item from tree <br>
+ *      Select - select item of the given order <br>
+ *      Rank   - get rank of the item <br>
+ * <br>
+ * Same as OS_RBTree&lt;Integer&gt;, but items are not boxed and nodes are indices into primitive arrays
+ * (see ArrayOS_RBTree), so that Insert and Delete do not allocate once the arrays are large enough.
+ */
+public class IntOS_RBTree extends ArrayOS_RBTree
+{
+    private int[] items;
+
+    // Constructors
+    public IntOS_RBTree()                { this(DEFAULT_CAPACITY); }
+    public IntOS_RBTree(int capacity)
+    {
+        super(capacity);
+        items = new int[size.length];
+    }
+
+    /**
+     * Insert x in tree if x is not in tree
+     * @param x item to insert
+     * @return true if x is not in tree, otherwise false
+     */
+    public boolean insert(int x)
+    {
+        int node = NIL;
+        int child = root();
+        boolean isLeft = true;  // whether child is left_ of node
+        while (child != NIL)    // find x
+        {
+            node = child;
+            int item = items[node];
+            if (item != x) child = (isLeft = (item > x)) ? left[node] : right[node];
+            else return false;  // x found
+        }
+
+        child = insertNode(node, isLeft);
+        items[child] = x;
+        fixInsert(child);
+        return true;
+    }
+
+    /**
+     * Delete x from tree if x is in tree
+     * @param x item to delete
+     * @return true if x is in tree, otherwise false
+     */
+    public boolean delete(int x)
+    {
+        int node = root();
+        while (node != NIL) // find x
+        {
+            int item = items[node];
+            if (item != x) node = (item > x) ? left[node] : right[node];
+            else // x found
+            {
+                deleteNode(node);
+                return true;
+            }
+        }
+        return false; // x not found
+    }
+
+    /**
+     * Select i-th item in tree
+     * @param i order, starting from 1
+     * @return i-th item
+     * @throws IndexOutOfBoundsException if i is not in [1, treeSize()]
+     */
+    public int select(int i) { return items[selectNode(i)]; }
+
+    /**
+     * Get rank of x in tree
+     * @param x item to get its rank
+     * @return rank of x if x is in tree, otherwise 0
+     */
+    public int rank(int x)
+    {
+        int r = 0;
+        int node = root();
+        while (node != NIL)
+        {
+            int item = items[node];
+            if (item > x) node = left[node];
+            else if (item < x)          // node is less than x
+            {
+                r += size[left[node]] + 1;              // x is greater than node and all items of left subtree
+                node = right[node];
+            }
+            else return r + size[left[node]] + 1;       // x found
+        }
+        return 0; // x not found
+    }
+
+    @Override
+    void swapItems(int a, int b)
+    {
+        int item = items[a];
+        items[a] = items[b];
+        items[b] = item;
+    }
+
+    @Override void copyItem(int to, int from)  { items[to] = items[from]; }
+    @Override void growItems(int capacity)     { items = Arrays.copyOf(items, capacity); }
+
+    @Override
+    public String toString() { return (root() == NIL) ? "empty" : printNode(root()); }
+
+    /**
+     * Return string that displays non-NIL node as following format: ([R or B] item,(left node),(right node))
+     * @param node
+     * @return string displaying node
+     */
+    private String printNode(int node)
+    {
+        return String.format("(%s %d,%s,%s)", red[node] ? "R" : "B", items[node],
+                             left[node] == NIL ? "NIL" : printNode(left[node]),
+                             right[node] == NIL ? "NIL" : printNode(right[node]));
+    }
+}
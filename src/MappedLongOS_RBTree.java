@@ -0,0 +1,268 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.Arrays;
+
+/**
+ * Order statistics Red-Black tree of long items whose nodes are stored off-heap, in a memory-mapped file. <br>
+ * <br>
+ * Same as LongOS_RBTree, but node fields live in fixed-size records of the file instead of Java arrays,
+ * so the tree adds nothing to the heap and to GC pauses however large it is. Since the file holds the
+ * whole state, reopening it after restart only remaps it, without rebuilding the tree. <br>
+ * <br>
+ * File layout: header of HEADER_BYTES (magic, version, tree size, free list head, next unused node,
+ * capacity), then records of RECORD_BYTES (item, left, right, parent, size, color) indexed by node.
+ * Nodes are linked, colored, and sized by IndexedOS_RBTree as in ArrayOS_RBTree: node 0 is NIL, root is
+ * stored at left of NIL, and deleted nodes are kept in a free list linked through parent. <br>
+ * Records are mapped in chunks of at most CHUNK_NODES nodes, since a MappedByteBuffer holds less than 2GB;
+ * the first chunk grows by doubling, and then whole chunks are added. <br>
+ * <br>
+ * Changes reach the file when the OS writes back mapped pages, or at force and close. A crash may leave
+ * the file partially written, so the file is not crash-consistent by itself.
+ */
+public class MappedLongOS_RBTree extends IndexedOS_RBTree implements Closeable
+{
+    static final long MAGIC = 0x4F535242_4D415001L;     // "OSRBMAP" and 1
+    static final int VERSION = 1;
+
+    // header fields
+    private static final int HEADER_BYTES = 64;
+    private static final int H_MAGIC = 0, H_VERSION = 8, H_TREE_SIZE = 12, H_FREE_HEAD = 16, H_NEXT_UNUSED = 20,
+                             H_CAPACITY = 24;
+
+    // record fields
+    private static final int RECORD_SHIFT = 5;          // record is 32 bytes
+    private static final int RECORD_BYTES = 1 << RECORD_SHIFT;
+    private static final int R_ITEM = 0, R_LEFT = 8, R_RIGHT = 12, R_PARENT = 16, R_SIZE = 20, R_RED = 24;
+
+    private static final int CHUNK_SHIFT = 25;          // chunk of 2^25 nodes is 1GB
+    private static final int CHUNK_NODES = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_NODES - 1;
+    private static final int MAX_CHUNKS = 63;           // so that capacity fits in int
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final FileChannel channel_;
+    private final ByteBuffer header_;
+    private ByteBuffer[] chunks_;
+
+    // Constructor
+    private MappedLongOS_RBTree(FileChannel channel) throws IOException
+    {
+        channel_ = channel;
+        header_ = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Open tree stored in file, or create empty tree if file does not exist or is empty
+     * @param file file of tree
+     * @return tree mapped to file
+     * @throws IOException if file cannot be mapped, or it is not a file of this class
+     */
+    public static MappedLongOS_RBTree open(Path file) throws IOException
+    {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                               StandardOpenOption.WRITE);
+        try
+        {
+            boolean isNew = (channel.size() == 0);
+            MappedLongOS_RBTree tree = new MappedLongOS_RBTree(channel);
+            if (isNew)
+            {
+                tree.header_.putLong(H_MAGIC, MAGIC);
+                tree.header_.putInt(H_VERSION, VERSION);
+                tree.header_.putInt(H_CAPACITY, INITIAL_CAPACITY);
+                tree.mapChunks(INITIAL_CAPACITY);
+                tree.clear();
+            }
+            else
+            {
+                if (tree.header_.getLong(H_MAGIC) != MAGIC || tree.header_.getInt(H_VERSION) != VERSION)
+                    throw new IOException("Not a tree file of version " + VERSION + ": " + file);
+                tree.mapChunks(tree.capacity());
+            }
+            return tree;
+        }
+        catch (IOException | RuntimeException e)
+        {
+            channel.close();
+            throw e;
+        }
+    }
+
+    // header accessors
+    @Override public int treeSize()                 { return header_.getInt(H_TREE_SIZE);       }
+    @Override void setTreeSize(int treeSize)        { header_.putInt(H_TREE_SIZE, treeSize);    }
+    @Override int freeHead()                        { return header_.getInt(H_FREE_HEAD);       }
+    @Override void setFreeHead(int node)            { header_.putInt(H_FREE_HEAD, node);        }
+    @Override int nextUnused()                      { return header_.getInt(H_NEXT_UNUSED);     }
+    @Override void setNextUnused(int node)          { header_.putInt(H_NEXT_UNUSED, node);      }
+    @Override int capacity()                        { return header_.getInt(H_CAPACITY);        }
+
+    // record accessors; chunk of node is node >>> CHUNK_SHIFT, and offset in it is (node & CHUNK_MASK) << RECORD_SHIFT
+    private long item(int node)                     { return chunks_[node >>> CHUNK_SHIFT].getLong(offset(node) + R_ITEM);      }
+    @Override int left(int node)                    { return chunks_[node >>> CHUNK_SHIFT].getInt(offset(node) + R_LEFT);       }
+    @Override int right(int node)                   { return chunks_[node >>> CHUNK_SHIFT].getInt(offset(node) + R_RIGHT);      }
+    @Override int parent(int node)                  { return chunks_[node >>> CHUNK_SHIFT].getInt(offset(node) + R_PARENT);     }
+    @Override int size(int node)                    { return chunks_[node >>> CHUNK_SHIFT].getInt(offset(node) + R_SIZE);       }
+    @Override boolean red(int node)                 { return chunks_[node >>> CHUNK_SHIFT].get(offset(node) + R_RED) != 0;      }
+    private void setItem(int node, long x)          { chunks_[node >>> CHUNK_SHIFT].putLong(offset(node) + R_ITEM, x);          }
+    @Override void setLeft(int node, int x)         { chunks_[node >>> CHUNK_SHIFT].putInt(offset(node) + R_LEFT, x);           }
+    @Override void setRight(int node, int x)        { chunks_[node >>> CHUNK_SHIFT].putInt(offset(node) + R_RIGHT, x);          }
+    @Override void setParent(int node, int x)       { chunks_[node >>> CHUNK_SHIFT].putInt(offset(node) + R_PARENT, x);         }
+    @Override void setSize(int node, int x)         { chunks_[node >>> CHUNK_SHIFT].putInt(offset(node) + R_SIZE, x);           }
+    @Override void setRed(int node, boolean x)      { chunks_[node >>> CHUNK_SHIFT].put(offset(node) + R_RED, (byte) (x ? 1 : 0)); }
+    private static int offset(int node)             { return (node & CHUNK_MASK) << RECORD_SHIFT; }
+
+    @Override
+    void swapItems(int a, int b)
+    {
+        long item = item(a);
+        setItem(a, item(b));
+        setItem(b, item);
+    }
+
+    @Override void copyItem(int to, int from)       { setItem(to, item(from)); }
+
+    /**
+     * Insert x in tree if x is not in tree
+     * @param x item to insert
+     * @return true if x is not in tree, otherwise false
+     */
+    public boolean insert(long x)
+    {
+        int node = NIL;
+        int child = root();
+        boolean isLeft = true;  // whether child is left of node
+        while (child != NIL)    // find x
+        {
+            node = child;
+            long item = item(node);
+            if (item != x) child = child(node, isLeft = (item > x));
+            else return false;  // x found
+        }
+
+        child = insertNode(node, isLeft);
+        setItem(child, x);
+        fixInsert(child);
+        return true;
+    }
+
+    /**
+     * Delete x from tree if x is in tree
+     * @param x item to delete
+     * @return true if x is in tree, otherwise false
+     */
+    public boolean delete(long x)
+    {
+        int node = root();
+        while (node != NIL && item(node) != x) node = child(node, item(node) > x);  // find x
+        if (node == NIL) return false;  // x not found
+        deleteNode(node);
+        return true;
+    }
+
+    /**
+     * Select i-th item in tree
+     * @param i order, starting from 1
+     * @return i-th item
+     * @throws IndexOutOfBoundsException if i is not in [1, treeSize()]
+     */
+    public long select(int i) { return item(selectNode(i)); }
+
+    /**
+     * Get rank of x in tree
+     * @param x item to get its rank
+     * @return rank of x if x is in tree, otherwise 0
+     */
+    public int rank(long x)
+    {
+        int r = 0;
+        int node = root();
+        while (node != NIL)
+        {
+            long item = item(node);
+            if (item > x) node = left(node);
+            else if (item < x)          // node is less than x
+            {
+                r += size(left(node)) + 1;              // x is greater than node and all items of left subtree
+                node = right(node);
+            }
+            else return r + size(left(node)) + 1;       // x found
+        }
+        return 0; // x not found
+    }
+
+    /**
+     * Write all changes to storage device
+     */
+    public void force()
+    {
+        for (ByteBuffer chunk : chunks_) ((MappedByteBuffer) chunk).force();
+        ((MappedByteBuffer) header_).force();
+    }
+
+    /**
+     * Force changes and close file; tree must not be used afterward
+     * @throws IOException if file cannot be closed
+     */
+    @Override
+    public void close() throws IOException
+    {
+        force();
+        channel_.close();
+    }
+
+    /**
+     * Double the first chunk until it is full size, and then add a chunk
+     */
+    @Override
+    void grow()
+    {
+        int capacity = capacity();
+        if (capacity >= MAX_CHUNKS * CHUNK_NODES) throw new IllegalStateException("Tree is full: " + capacity);
+        capacity = (capacity < CHUNK_NODES) ? Math.min(2 * capacity, CHUNK_NODES) : capacity + CHUNK_NODES;
+        try
+        {
+            mapChunks(capacity);
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+        header_.putInt(H_CAPACITY, capacity);
+    }
+
+    /**
+     * Map records of given number of nodes, extending file if needed; chunks mapped before are kept
+     * @param capacity number of nodes, either less than CHUNK_NODES or a multiple of it
+     */
+    private void mapChunks(int capacity) throws IOException
+    {
+        int count = (capacity + CHUNK_MASK) >>> CHUNK_SHIFT;
+        int mapped = (chunks_ == null) ? 0 : chunks_.length;
+        if (mapped > 0 && chunks_[mapped - 1].capacity() < ((long) CHUNK_NODES << RECORD_SHIFT)) mapped--;   // partial chunk
+        chunks_ = (chunks_ == null) ? new ByteBuffer[count] : Arrays.copyOf(chunks_, count);
+        for (int c = mapped ; c < count ; c++)
+        {
+            long nodes = Math.min(CHUNK_NODES, capacity - (long) c * CHUNK_NODES);
+            chunks_[c] = channel_.map(FileChannel.MapMode.READ_WRITE, HEADER_BYTES + ((long) c << (CHUNK_SHIFT + RECORD_SHIFT)),
+                                      nodes << RECORD_SHIFT).order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+
+    @Override
+    public String toString() { return (root() == NIL) ? "empty" : printNode(root()); }
+
+    /**
+     * Return string that displays non-NIL node as following format: ([R or B] item,(left node),(right node))
+     * @param node
+     * @return string displaying node
+     */
+    private String printNode(int node)
+    {
+        return String.format("(%s %d,%s,%s)", red(node) ? "R" : "B", item(node),
+                             left(node) == NIL ? "NIL" : printNode(left(node)),
+                             right(node) == NIL ? "NIL" : printNode(right(node)));
+    }
+}
@@ -0,0 +1,441 @@
+import java.util.Arrays;
+
+/**
+ * Order statistics B+-tree, an OrderStatisticSet with wide nodes. <br>
+ * <br>
+ * Items are stored in leaves of up to MAX items, and each internal node keeps up to MAX children with
+ * their subtree sizes in a contiguous int array. So Select scans a few cache lines of counts per level
+ * instead of chasing one RBTreeNode per level, and the height is about log_{MAX/2}(n) instead of 2 log2(n). <br>
+ * <br>
+ * Separator keys[i] of internal node is equal or less than all items of children[i + 1], and greater than
+ * all items of children[i]; since deletion does not update separators, a separator need not be in tree. <br>
+ * Every node except root has at least MIN items (or children), and all leaves are at the same depth.
+ * @param <T>
+ */
+public class OS_BTree<T extends Comparable<T>> implements OrderStatisticSet<T>
+{
+    static final int MAX = 64;          // maximum number of items of leaf, and of children of internal node
+    static final int MIN = MAX / 2;     // minimum of them, except for root
+
+    private Node root_ = new Leaf();
+    private int treeSize_ = 0;
+    private boolean changed_;           // whether last recursive insert or delete has changed tree
+    private Object splitKey_;           // separator of node split by last recursive insert
+
+    // Accessors
+    @Override
+    public int treeSize()   { return treeSize_; }
+
+    /**
+     * Insert x in tree if x is not in tree
+     * @param x item to insert
+     * @return x if x is not in tree, otherwise null
+     */
+    @Override
+    public T insert(T x)
+    {
+        Node sibling = insert(root_, x);
+        if (!changed_) return null; // x found
+        if (sibling != null)        // root has been split; tree grows taller
+        {
+            Internal root = new Internal();
+            root.children[0] = root_;
+            root.children[1] = sibling;
+            root.counts[0] = size(root_);
+            root.counts[1] = size(sibling);
+            root.keys[0] = splitKey_;
+            root.n = 2;
+            root_ = root;
+        }
+        treeSize_++;
+        return x;
+    }
+
+    /**
+     * Delete x from tree if x is in tree
+     * @param x item to delete
+     * @return x if x is in tree, otherwise null
+     */
+    @Override
+    public T delete(T x)
+    {
+        if (!delete(root_, x)) return null; // x not found
+        if (root_ instanceof Internal && root_.n == 1) root_ = ((Internal) root_).children[0];  // tree gets shorter
+        treeSize_--;
+        return x;
+    }
+
+    /**
+     * Select i-th item in tree
+     * @param i order, starting from 1
+     * @return i-th item if i is equal or less than the size of tree, otherwise null
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public T select(int i)
+    {
+        if (i > treeSize_ || i < 1) return null;    // i is out of range of OS_BTree
+
+        Node node = root_;
+        while (node instanceof Internal)
+        {
+            Internal internal = (Internal) node;
+            int c = 0;
+            while (i > internal.counts[c]) i -= internal.counts[c++];  // skip children before i-th item
+            node = internal.children[c];
+        }
+        return (T) ((Leaf) node).items[i - 1];
+    }
+
+    /**
+     * Get rank of x in tree
+     * @param x item to get its rank
+     * @return rank of x if x is in tree, otherwise 0
+     */
+    @Override
+    public int rank(T x)
+    {
+        int r = 0;
+        Node node = root_;
+        while (node instanceof Internal)
+        {
+            Internal internal = (Internal) node;
+            int c = childIndex(internal, x);
+            for (int k = 0 ; k < c ; k++) r += internal.counts[k];  // x is greater than items of children before c
+            node = internal.children[c];
+        }
+        int pos = search((Leaf) node, x);
+        return (pos >= 0) ? r + pos + 1 : 0;
+    }
+
+    /**
+     * Clear tree
+     */
+    @Override
+    public void clear()
+    {
+        root_ = new Leaf();
+        treeSize_ = 0;
+    }
+
+    /**
+     * Insert x in subtree of node
+     * @return new right sibling if node has been split (its separator is stored in splitKey_), otherwise null
+     */
+    private Node insert(Node node, T x)
+    {
+        if (node instanceof Leaf)
+        {
+            Leaf leaf = (Leaf) node;
+            int pos = search(leaf, x);
+            if (changed_ = (pos < 0)) pos = -pos - 1;
+            else return null;       // x found
+            System.arraycopy(leaf.items, pos, leaf.items, pos + 1, leaf.n - pos);
+            leaf.items[pos] = x;
+            if (++leaf.n <= MAX) return null;
+
+            // split leaf in half
+            Leaf right = new Leaf();
+            int half = leaf.n / 2;
+            right.n = leaf.n - half;
+            System.arraycopy(leaf.items, half, right.items, 0, right.n);
+            Arrays.fill(leaf.items, half, leaf.n, null);
+            leaf.n = half;
+            splitKey_ = right.items[0];
+            return right;
+        }
+
+        Internal internal = (Internal) node;
+        int c = childIndex(internal, x);
+        Node sibling = insert(internal.children[c], x);
+        if (!changed_) return null;
+        internal.counts[c]++;
+        if (sibling == null) return null;
+
+        // put split child right after c
+        int moved = internal.n - c - 1;
+        System.arraycopy(internal.children, c + 1, internal.children, c + 2, moved);
+        System.arraycopy(internal.counts, c + 1, internal.counts, c + 2, moved);
+        System.arraycopy(internal.keys, c, internal.keys, c + 1, moved);
+        internal.children[c + 1] = sibling;
+        internal.counts[c + 1] = size(sibling);
+        internal.counts[c] -= internal.counts[c + 1];
+        internal.keys[c] = splitKey_;
+        if (++internal.n <= MAX) return null;
+
+        // split internal node in half; separator between halves moves up
+        Internal right = new Internal();
+        int half = internal.n / 2;
+        right.n = internal.n - half;
+        System.arraycopy(internal.children, half, right.children, 0, right.n);
+        System.arraycopy(internal.counts, half, right.counts, 0, right.n);
+        System.arraycopy(internal.keys, half, right.keys, 0, right.n - 1);
+        splitKey_ = internal.keys[half - 1];
+        Arrays.fill(internal.children, half, internal.n, null);
+        Arrays.fill(internal.keys, half - 1, internal.n - 1, null);
+        internal.n = half;
+        return right;
+    }
+
+    /**
+     * Delete x from subtree of node; a child left with less than MIN items is refilled from its sibling
+     * @return true iff x has been deleted
+     */
+    private boolean delete(Node node, T x)
+    {
+        if (node instanceof Leaf)
+        {
+            Leaf leaf = (Leaf) node;
+            int pos = search(leaf, x);
+            if (pos < 0) return false;  // x not found
+            System.arraycopy(leaf.items, pos + 1, leaf.items, pos, leaf.n - pos - 1);
+            leaf.items[--leaf.n] = null;
+            return true;
+        }
+
+        Internal internal = (Internal) node;
+        int c = childIndex(internal, x);
+        if (!delete(internal.children[c], x)) return false;
+        internal.counts[c]--;
+        if (internal.children[c].n < MIN) refill(internal, c);
+        return true;
+    }
+
+    /**
+     * Fix underflow of c-th child of node, by borrowing from a sibling with spare items, or merging with one
+     */
+    private void refill(Internal node, int c)
+    {
+        if (c > 0 && node.children[c - 1].n > MIN) borrowFromLeft(node, c);
+        else if (c < node.n - 1 && node.children[c + 1].n > MIN) borrowFromRight(node, c);
+        else if (c > 0) merge(node, c - 1);
+        else merge(node, c);
+    }
+
+    // move last item (or child) of (c - 1)-th child to front of c-th child
+    private void borrowFromLeft(Internal node, int c)
+    {
+        Node left = node.children[c - 1], right = node.children[c];
+        int moved;  // number of items moved
+        if (left instanceof Leaf)
+        {
+            Leaf l = (Leaf) left, r = (Leaf) right;
+            System.arraycopy(r.items, 0, r.items, 1, r.n++);
+            r.items[0] = l.items[--l.n];
+            l.items[l.n] = null;
+            node.keys[c - 1] = r.items[0];
+            moved = 1;
+        }
+        else
+        {
+            Internal l = (Internal) left, r = (Internal) right;
+            System.arraycopy(r.children, 0, r.children, 1, r.n);
+            System.arraycopy(r.counts, 0, r.counts, 1, r.n);
+            System.arraycopy(r.keys, 0, r.keys, 1, r.n - 1);
+            r.n++;
+            l.n--;
+            r.children[0] = l.children[l.n];
+            r.counts[0] = moved = l.counts[l.n];
+            r.keys[0] = node.keys[c - 1];
+            node.keys[c - 1] = l.keys[l.n - 1];
+            l.children[l.n] = null;
+            l.keys[l.n - 1] = null;
+        }
+        node.counts[c - 1] -= moved;
+        node.counts[c] += moved;
+    }
+
+    // move first item (or child) of (c + 1)-th child to end of c-th child
+    private void borrowFromRight(Internal node, int c)
+    {
+        Node left = node.children[c], right = node.children[c + 1];
+        int moved;  // number of items moved
+        if (left instanceof Leaf)
+        {
+            Leaf l = (Leaf) left, r = (Leaf) right;
+            l.items[l.n++] = r.items[0];
+            System.arraycopy(r.items, 1, r.items, 0, --r.n);
+            r.items[r.n] = null;
+            node.keys[c] = r.items[0];
+            moved = 1;
+        }
+        else
+        {
+            Internal l = (Internal) left, r = (Internal) right;
+            l.keys[l.n - 1] = node.keys[c];
+            l.children[l.n] = r.children[0];
+            l.counts[l.n] = moved = r.counts[0];
+            l.n++;
+            node.keys[c] = r.keys[0];
+            r.n--;
+            System.arraycopy(r.children, 1, r.children, 0, r.n);
+            System.arraycopy(r.counts, 1, r.counts, 0, r.n);
+            System.arraycopy(r.keys, 1, r.keys, 0, r.n - 1);
+            r.children[r.n] = null;
+            r.keys[r.n - 1] = null;
+        }
+        node.counts[c] += moved;
+        node.counts[c + 1] -= moved;
+    }
+
+    // merge (c + 1)-th child into c-th child, and remove it from node
+    private void merge(Internal node, int c)
+    {
+        Node left = node.children[c], right = node.children[c + 1];
+        if (left instanceof Leaf)
+        {
+            Leaf l = (Leaf) left, r = (Leaf) right;
+            System.arraycopy(r.items, 0, l.items, l.n, r.n);
+            l.n += r.n;
+        }
+        else
+        {
+            Internal l = (Internal) left, r = (Internal) right;
+            l.keys[l.n - 1] = node.keys[c];     // separator comes down between children of l and r
+            System.arraycopy(r.children, 0, l.children, l.n, r.n);
+            System.arraycopy(r.counts, 0, l.counts, l.n, r.n);
+            System.arraycopy(r.keys, 0, l.keys, l.n, r.n - 1);
+            l.n += r.n;
+        }
+        node.counts[c] += node.counts[c + 1];
+        int moved = node.n - c - 2;
+        System.arraycopy(node.children, c + 2, node.children, c + 1, moved);
+        System.arraycopy(node.counts, c + 2, node.counts, c + 1, moved);
+        System.arraycopy(node.keys, c + 1, node.keys, c, moved);
+        node.n--;
+        node.children[node.n] = null;
+        node.keys[node.n - 1] = null;
+    }
+
+    /**
+     * Find child of internal node whose subtree may have x
+     * @return number of separators equal or less than x
+     */
+    @SuppressWarnings("unchecked")
+    private int childIndex(Internal node, T x)
+    {
+        int lo = 0, hi = node.n - 1;    // binary search over separators
+        while (lo < hi)
+        {
+            int mid = (lo + hi) >>> 1;
+            if (((T) node.keys[mid]).compareTo(x) <= 0) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * Find x in leaf
+     * @return index of x if found, otherwise (-(insertion point) - 1) as Arrays.binarySearch
+     */
+    @SuppressWarnings("unchecked")
+    private int search(Leaf leaf, T x)
+    {
+        int lo = 0, hi = leaf.n - 1;
+        while (lo <= hi)
+        {
+            int mid = (lo + hi) >>> 1;
+            int comp = ((T) leaf.items[mid]).compareTo(x);
+            if (comp < 0) lo = mid + 1;
+            else if (comp > 0) hi = mid - 1;
+            else return mid;
+        }
+        return -lo - 1;
+    }
+
+    // number of items in subtree of node
+    private static int size(Node node)
+    {
+        if (node instanceof Leaf) return node.n;
+        int size = 0;
+        for (int k = 0 ; k < node.n ; k++) size += ((Internal) node).counts[k];
+        return size;
+    }
+
+    @Override
+    public String toString() { return (treeSize_ == 0) ? "empty" : printNode(root_, new StringBuilder()).toString(); }
+
+    // display leaf as [item item ...] and internal node as (child key child ...)
+    private StringBuilder printNode(Node node, StringBuilder sb)
+    {
+        if (node instanceof Leaf)
+        {
+            sb.append('[');
+            for (int k = 0 ; k < node.n ; k++) sb.append(k == 0 ? "" : " ").append(((Leaf) node).items[k]);
+            return sb.append(']');
+        }
+        Internal internal = (Internal) node;
+        sb.append('(');
+        for (int k = 0 ; k < node.n ; k++)
+        {
+            if (k > 0) sb.append(' ').append(internal.keys[k - 1]).append(' ');
+            printNode(internal.children[k], sb);
+        }
+        return sb.append(')');
+    }
+
+    // debug purpose
+    /**
+     * Return true iff tree satisfies order statistics and B+-tree property
+     * @return whether tree is valid
+     */
+    public boolean isValid() { return size(root_) == treeSize_ && depth(root_, null, null) != -1; }
+
+    /**
+     * Used to check tree properties
+     * @param lo all items must be equal or greater than lo, unless null
+     * @param hi all items must be less than hi, unless null
+     * @return -1 if node or any of its descendant is invalid, otherwise depth of leaves below node
+     */
+    @SuppressWarnings("unchecked")
+    private int depth(Node node, T lo, T hi)
+    {
+        if ((node != root_ && node.n < MIN) || node.n > MAX) return -1; // occupancy
+        if (node instanceof Leaf)
+        {
+            Object[] items = ((Leaf) node).items;
+            for (int k = 0 ; k < node.n ; k++)
+            {
+                T item = (T) items[k];
+                if ((k > 0 && ((T) items[k - 1]).compareTo(item) >= 0) ||
+                    (lo != null && item.compareTo(lo) < 0) || (hi != null && item.compareTo(hi) >= 0))
+                    return -1;
+            }
+            return 0;
+        }
+        Internal internal = (Internal) node;
+        if (node.n < 2) return -1;
+        int depth = -1;
+        for (int k = 0 ; k < node.n ; k++)
+        {
+            T childLo = (k == 0) ? lo : (T) internal.keys[k - 1];
+            T childHi = (k == node.n - 1) ? hi : (T) internal.keys[k];
+            int childDepth = depth(internal.children[k], childLo, childHi);
+            if (childDepth == -1 || (depth != -1 && childDepth != depth) ||
+                internal.counts[k] != size(internal.children[k]))           // order statistics
+                return -1;
+            depth = childDepth;
+        }
+        return depth + 1;
+    }
+
+    /**
+     * Node of OS_BTree; arrays have room for one more entry, to be split after insertion
+     */
+    private static abstract class Node
+    {
+        int n;  // number of items of leaf, or number of children of internal node
+    }
+
+    private static final class Leaf extends Node
+    {
+        final Object[] items = new Object[MAX + 1];
+    }
+
+    private static final class Internal extends Node
+    {
+        final Node[] children = new Node[MAX + 1];
+        final int[] counts = new int[MAX + 1];      // size of subtree of each child
+        final Object[] keys = new Object[MAX];      // separators between children
+    }
+}
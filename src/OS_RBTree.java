@@ -1,3 +1,9 @@
+import java.io.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
 /**
  * Order statistics Red-Black tree that supports following operations: <br>
  *      Insert - insert an item to tree <br>
@@ -5,219 +11,1906 @@
  *      Select - select item of the given order <br>
  *      Rank   - get rank of the item <br>
  * <br>
+ * Subtrees can be moved between trees in O(log n) by join and split, on which parallel set operations
+ * (union, intersection, difference) are built. For this, NIL is shared by all trees and never modified,
+ * and root of each tree is stored at left_ of its own head node. <br>
+ * <br>
+ * Optionally, an Aggregate (e.g. sum of weights) is kept for every subtree alongside its size,
+ * which answers rangeAggregate and selectByWeight in O(log n). <br>
+ * <br>
+ * In multiset mode, equal items share one node that counts their occurrences, and sizes sum the counts;
+ * insert and delete add and remove one occurrence, and select, rank, and iteration see every occurrence. <br>
+ * <br>
+ * With finger search on, operations start from the node accessed last instead of root, so that
+ * accesses near the previous one and appends of a new maximum take few comparisons. <br>
+ * <br>
+ * enableMetrics counts rotations, recolorings, and fixup cases, lengths of search paths, and latency of
+ * Insert, Delete, Select, and Rank (see OS_RBTreeMetrics); otherwise they cost one null check. <br>
+ * <br>
+ * This class is not thread-safe; ConcurrentOS_RBTree wraps it for concurrent readers and writers. <br>
+ * <br>
+ * writeSnapshot saves items in a compact binary format, and readSnapshot loads them back in linear time;
+ * DurableOS_RBTree uses them with a write-ahead log to keep the tree across crashes. <br>
+ * <br>
  * @param <T>
  * @author 오지현 (자연과학대학 생명과학부, ID: 2017-16544)
  */
-public class OS_RBTree<T extends Comparable<T>>
+public class OS_RBTree<T extends Comparable<T>> implements OrderStatisticSet<T>, Iterable<T>
 {
-    private final RBTreeNode<T> NIL = new RBTreeNode<>(false, null, null, null, null);
+    private final RBTreeNode<T> NIL = RBTreeNode.nil();
+    private final RBTreeNode<T> head_ = new RBTreeNode<>(false, null, NIL, NIL, NIL);  // parent of root
+    private final Aggregate<T> aggregate_;  // null if no aggregate is kept
+    private final boolean multiset_;        // whether equal items are counted instead of rejected
+
+    private static final int MAX_HEIGHT = 64;           // height of red-black tree of less than 2^31 nodes is at most 62
+
+    // snapshot format: header, items (each followed by its count in multiset mode), and CRC32 of all before
+    private static final int SNAPSHOT_MAGIC = 0x4F535253;      // "OSRS"
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final int SNAPSHOT_MULTISET = 1;             // flag
     private int treeSize_ = 0;
+    private int modCount_ = 0;          // number of structural modifications, to detect concurrent modification
+    private boolean recycle_ = false;   // whether nodes of deleted items are reused
+    private RBTreeNode<T> free_ = null; // free list of nodes, linked by parent_; children of free node are also free
+    private boolean fingerSearch_ = false;  // whether operations start from finger_ instead of root
+    private RBTreeNode<T> finger_ = null;   // node accessed last, or null; finger_ and max_ are valid
+    private int fingerRank_;                // while fingerModCount_ == modCount_; insert and delete keep them valid
+    private RBTreeNode<T> max_ = null;      // node of the maximum item, NIL if tree is empty, or null if unknown
+    private int fingerModCount_ = -1;
+    private int base_;                      // number of occurrences before subtree of node returned by climb
+    private OS_RBTreeMetrics metrics_ = null;   // null unless metrics are enabled
+    private boolean shared_ = false;            // whether wrapped by ConcurrentOS_RBTree, whose readers must not write
+
+    // Constructors
+    public OS_RBTree() { this(null, false); }
+
+    /**
+     * @param aggregate aggregate to keep for every subtree, or null
+     */
+    public OS_RBTree(Aggregate<T> aggregate) { this(aggregate, false); }
+
+    /**
+     * @param aggregate aggregate to keep for every subtree, or null
+     * @param multiset whether to keep equal items as multiple occurrences
+     */
+    public OS_RBTree(Aggregate<T> aggregate, boolean multiset)
+    {
+        head_.minusSize();  // to make size 0; root of empty tree is NIL
+        aggregate_ = aggregate;
+        multiset_ = multiset;
+    }
+
+    /**
+     * Build tree of items in linear time, without rotation
+     * @param items items in strictly increasing order
+     * @return tree of items
+     * @throws IllegalArgumentException if items are not in strictly increasing order
+     */
+    public static <T extends Comparable<T>> OS_RBTree<T> fromSorted(T[] items)
+    {
+        return fromSorted(items, null);
+    }
+
+    /**
+     * Build tree of items in linear time, without rotation
+     * @param items items in strictly increasing order
+     * @param aggregate aggregate to keep for every subtree, or null
+     * @return tree of items
+     * @throws IllegalArgumentException if items are not in strictly increasing order
+     */
+    public static <T extends Comparable<T>> OS_RBTree<T> fromSorted(T[] items, Aggregate<T> aggregate)
+    {
+        OS_RBTree<T> tree = new OS_RBTree<>(aggregate);
+        tree.build(Arrays.asList(items).iterator(), null, items.length);
+        return tree;
+    }
+
+    /**
+     * Build tree of first n items of iterator in linear time, without rotation
+     * @param items iterator of items in strictly increasing order
+     * @param n number of items to take from iterator
+     * @return tree of items
+     * @throws IllegalArgumentException if items are not in strictly increasing order
+     * @throws NoSuchElementException if iterator has less than n items
+     */
+    public static <T extends Comparable<T>> OS_RBTree<T> fromSorted(Iterator<? extends T> items, int n)
+    {
+        OS_RBTree<T> tree = new OS_RBTree<>();
+        tree.build(items, null, n);
+        return tree;
+    }
+
+    /**
+     * Build empty tree from first n items of iterator
+     * @param items iterator of items in strictly increasing order
+     * @param counts iterator of counts of items in multiset mode, or null
+     * @param n number of items to take from iterator
+     */
+    private void build(Iterator<? extends T> items, PrimitiveIterator.OfInt counts, int n)
+    {
+        if (n <= 0) return;
+
+        Iterator<T> checked = new Iterator<T>()     // check order while building
+        {
+            private T last = null;
+            public boolean hasNext() { return items.hasNext(); }
+            public T next()
+            {
+                T x = items.next();
+                if (last != null && last.compareTo(x) >= 0)
+                    throw new IllegalArgumentException("Items are not in strictly increasing order: " + last + ", " + x);
+                return last = x;
+            }
+        };
+        setRoot(build(checked, counts, n, 0, 31 - Integer.numberOfLeadingZeros(n)));
+    }
+
+    /**
+     * Build tree of items in any order; items are sorted in parallel, then built in linear time
+     * @param items items to insert; duplicates are inserted once, and array is not modified
+     * @return tree of items
+     */
+    public static <T extends Comparable<T>> OS_RBTree<T> fromUnsorted(T[] items)
+    {
+        T[] sorted = items.clone();
+        Arrays.parallelSort(sorted);
+        int n = 0;
+        for (T x : sorted) if (n == 0 || sorted[n - 1].compareTo(x) != 0) sorted[n++] = x;  // remove duplicates
+        return fromSorted(Arrays.asList(sorted).iterator(), n);
+    }
+
+    /**
+     * Write items to out in snapshot format: magic, version, flags, number of nodes (varint), items in order
+     * encoded by codec (each followed by its count as varint, in multiset mode), and CRC32 of all before <br>
+     * out is flushed but not closed. Aggregate is not written; it is recomputed on load.
+     * @param out output stream
+     * @param codec encoding of items
+     * @throws IOException if out fails
+     */
+    public void writeSnapshot(OutputStream out, SnapshotCodec<? super T> codec) throws IOException
+    {
+        CRC32 crc = new CRC32();
+        DataOutputStream data = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(out, 1 << 16), crc));
+        int nodes = (multiset_) ? countNodes() : treeSize_;
+        data.writeInt(SNAPSHOT_MAGIC);
+        data.writeByte(SNAPSHOT_VERSION);
+        data.writeByte(multiset_ ? SNAPSHOT_MULTISET : 0);
+        SnapshotCodec.writeVarLong(data, nodes);
+        T previous = null;
+        for (RBTreeNode<T> node = first() ; node != NIL ; node = successor(node, true))
+        {
+            codec.write(data, previous, node.item());
+            if (multiset_) SnapshotCodec.writeVarLong(data, node.count());
+            previous = node.item();
+        }
+        data.flush();
+        new DataOutputStream(out).writeInt((int) crc.getValue());   // checksum is not checksummed
+        out.flush();
+    }
+
+    /**
+     * Write items to channel in snapshot format, from its current position; channel is not closed
+     * @param channel writable channel
+     * @param codec encoding of items
+     * @throws IOException if channel fails
+     */
+    public void writeSnapshot(WritableByteChannel channel, SnapshotCodec<? super T> codec) throws IOException
+    {
+        writeSnapshot(Channels.newOutputStream(channel), codec);
+    }
+
+    /**
+     * Read tree written by writeSnapshot, building it in linear time without insertion or rotation <br>
+     * in may be read beyond the end of snapshot, and is not closed.
+     * @param in input stream
+     * @param codec encoding of items, same as the one written with
+     * @param aggregate aggregate to keep for every subtree, or null
+     * @return tree of items in snapshot; multiset iff written from multiset
+     * @throws IOException if in fails, or snapshot is truncated, corrupt, or of unknown version
+     */
+    public static <T extends Comparable<T>> OS_RBTree<T> readSnapshot(InputStream in, SnapshotCodec<T> codec,
+                                                                       Aggregate<T> aggregate) throws IOException
+    {
+        CRC32 crc = new CRC32();
+        CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(in, 1 << 16), crc);
+        DataInputStream data = new DataInputStream(checked);
+        if (data.readInt() != SNAPSHOT_MAGIC) throw new IOException("Not a snapshot of OS_RBTree");
+        int version = data.readUnsignedByte();
+        if (version != SNAPSHOT_VERSION) throw new IOException("Unknown snapshot version: " + version);
+        boolean multiset = (data.readUnsignedByte() & SNAPSHOT_MULTISET) != 0;
+        long nodes = SnapshotCodec.readVarLong(data);
+        if (nodes > Integer.MAX_VALUE) throw new IOException("Corrupt snapshot: " + nodes + " nodes");
+
+        // items are decoded while tree is built; decoding errors are carried out of iterators unchecked
+        Iterator<T> items = new Iterator<T>()
+        {
+            private T previous = null;
+            public boolean hasNext() { return true; }
+            public T next()
+            {
+                try
+                {
+                    return previous = codec.read(data, previous);
+                }
+                catch (IOException e)
+                {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        };
+        PrimitiveIterator.OfInt counts = !multiset ? null : new PrimitiveIterator.OfInt()
+        {
+            public boolean hasNext() { return true; }
+            public int nextInt()
+            {
+                try
+                {
+                    long count = SnapshotCodec.readVarLong(data);
+                    if (count < 1 || count > Integer.MAX_VALUE) throw new IOException("Corrupt snapshot: count " + count);
+                    return (int) count;
+                }
+                catch (IOException e)
+                {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        };
+
+        OS_RBTree<T> tree = new OS_RBTree<>(aggregate, multiset);
+        try
+        {
+            tree.build(items, counts, (int) nodes);
+        }
+        catch (UncheckedIOException e)
+        {
+            throw e.getCause();
+        }
+        catch (IllegalArgumentException e)      // items out of order
+        {
+            throw new IOException("Corrupt snapshot: " + e.getMessage(), e);
+        }
+        int expected = (int) crc.getValue();
+        if (data.readInt() != expected) throw new IOException("Snapshot checksum mismatch");
+        return tree;
+    }
+
+    /**
+     * Read tree written by writeSnapshot from channel, from its current position; channel is not closed
+     * @param channel readable channel
+     * @param codec encoding of items, same as the one written with
+     * @param aggregate aggregate to keep for every subtree, or null
+     * @return tree of items in snapshot
+     * @throws IOException if channel fails, or snapshot is truncated, corrupt, or of unknown version
+     */
+    public static <T extends Comparable<T>> OS_RBTree<T> readSnapshot(ReadableByteChannel channel, SnapshotCodec<T> codec,
+                                                                       Aggregate<T> aggregate) throws IOException
+    {
+        return readSnapshot(Channels.newInputStream(channel), codec, aggregate);
+    }
+
+    // number of nodes, which is less than treeSize() in multiset mode
+    private int countNodes()
+    {
+        int count = 0;
+        for (RBTreeNode<T> node = first() ; node != NIL ; node = successor(node, true)) count++;
+        return count;
+    }
+
+    /**
+     * Build subtree of n items in order; sizes of left and right subtree differ by at most 1,
+     * so every NIL is at depth redDepth or redDepth + 1, and coloring nodes at redDepth red
+     * gives the same black height to all paths (root stays black)
+     * @param items iterator of items in increasing order
+     * @param counts iterator of counts of items, or null if all counts are 1
+     * @param n number of items in subtree, at least 1
+     * @param depth depth of subtree root
+     * @param redDepth depth of deepest level
+     * @return root of subtree; its parent is not set
+     */
+    private RBTreeNode<T> build(Iterator<T> items, PrimitiveIterator.OfInt counts, int n, int depth, int redDepth)
+    {
+        int leftSize = (n - 1) / 2;
+        RBTreeNode<T> left = (leftSize == 0) ? NIL : build(items, counts, leftSize, depth + 1, redDepth);
+        RBTreeNode<T> node = new RBTreeNode<>(depth == redDepth && depth != 0, items.next(), NIL, left, NIL);
+        if (counts != null) node.setCount(counts.nextInt());   // read right after its item
+        if (left != NIL) left.setParent(node);
+        if (n - leftSize - 1 > 0)
+        {
+            RBTreeNode<T> right = build(items, counts, n - leftSize - 1, depth + 1, redDepth);
+            right.setParent(node);
+            node.setRight(right);
+        }
+        update(node);
+        return node;
+    }
+
+    // Accessors
+    RBTreeNode<T> root()    { return head_.left(); } // root is stored at head_.left_
+    public int treeSize()   { return treeSize_;    } // number of occurrences in multiset mode
+    public boolean isMultiset() { return multiset_; }
+
+    /**
+     * Get black height of tree in O(log n) by its leftmost path; height of tree is at most twice of it
+     * @return number of black nodes from root to NIL
+     */
+    int blackHeight()
+    {
+        int bh = 0;
+        for (RBTreeNode<T> node = root() ; node != NIL ; node = node.left()) if (!node.red()) bh++;
+        return bh;
+    }
+
+    /**
+     * Make node root of tree; size of tree is taken from node
+     * @param root detached node, or NIL
+     */
+    private void setRoot(RBTreeNode<T> root)
+    {
+        head_.setLeft(root);
+        if (root != NIL)
+        {
+            root.setParent(head_);
+            root.setRed(false);     // root is always black
+        }
+        treeSize_ = root.size();
+        modCount_++;
+    }
+
+    /**
+     * Insert x in tree if x is not in tree; in multiset mode, add an occurrence of x
+     * @param x item to insert
+     * @return x if x is not in tree (or in multiset mode), otherwise null
+     */
+    @Override
+    public T insert(T x)
+    {
+        if (metrics_ == null) return insertItem(x);
+        long start = System.nanoTime();
+        T result = insertItem(x);
+        metrics_.insertLatency_.record(System.nanoTime() - start);
+        return result;
+    }
+
+    private T insertItem(T x)
+    {
+        if (fingerSearch_) refreshFinger();
+        if (root() == NIL)  // empty tree
+        {
+            head_.setLeft(newNode(false, x, head_));                    // new root
+            if (aggregate_ != null) root().setAgg(aggregate_.value(x));
+            treeSize_++;
+            modCount_++;
+            if (fingerSearch_) setFinger(max_ = root(), 1);
+            return x;
+        }
+
+        RBTreeNode<T> node;
+        RBTreeNode<T> child;
+        boolean isLeft = false; // whether child is left_ of node
+        int r;                  // number of occurrences less than x
+        int path = 1;           // number of nodes compared with x
+        if (fingerSearch_ && max_.item().compareTo(x) < 0)    // x is new maximum; append to max_
+        {
+            node = max_;
+            r = treeSize_;
+        }
+        else
+        {
+            child = climb(x);
+            r = base_;
+            for ( ; ; path++) // find x
+            {
+                node = child;
+                int comp = node.item().compareTo(x);
+                if (comp != 0)
+                {
+                    if (comp < 0) r += node.left().size() + node.count();
+                    child = node.child(isLeft = (comp > 0));
+                    if (child == NIL) break;
+                }
+                else if (multiset_)     // x found; count one more occurrence
+                {
+                    addCount(node, 1);
+                    if (fingerSearch_) setFinger(node, r + node.left().size() + 1);
+                    recordPath(path);
+                    return x;
+                }
+                else // x found
+                {
+                    if (fingerSearch_) setFinger(node, r + node.left().size() + 1);
+                    recordPath(path);
+                    return null;
+                }
+            }
+        }
+        recordPath(path);
+
+        node.setChild(child = newNode(true, x, node), isLeft);
+        if (fingerSearch_)
+        {
+            if (node == max_ && !isLeft) max_ = child;
+            finger_ = child;        // rotation below moves finger_ and max_ with their items
+            fingerRank_ = r + 1;
+        }
+
+        if (aggregate_ == null) do node.plusSize(); while ((node = node.parent()) != head_);     // adjust node size
+        else
+        {
+            child.setAgg(aggregate_.value(x));
+            do update(node); while ((node = node.parent()) != head_);  // adjust node size and aggregate
+        }
+        if (child.parent().red()) modify_Insert(child);                 // double-red problem
+        treeSize_++;
+        modCount_++;
+        if (fingerSearch_) fingerModCount_ = modCount_;
+        return x;
+    }
+
+    /**
+     * Delete x from tree if x is in tree; in multiset mode, remove an occurrence of x
+     * @param x item to delete
+     * @return x if x is in tree, otherwise null
+     */
+    @Override
+    public T delete(T x)
+    {
+        if (metrics_ == null) return deleteItem(x);
+        long start = System.nanoTime();
+        T result = deleteItem(x);
+        metrics_.deleteLatency_.record(System.nanoTime() - start);
+        return result;
+    }
+
+    private T deleteItem(T x)
+    {
+        if (root() == NIL) return null; // empty tree
+        if (fingerSearch_) refreshFinger();
+
+        RBTreeNode<T> node = climb(x);
+        boolean isLeft = (node == node.parent().left());    // whether node is left_ of its parent
+        int path = 0;                                       // number of nodes compared with x
+        do // find x
+        {
+            path++;
+            int comp = node.item().compareTo(x);
+            if (comp != 0) node = node.child(isLeft = (comp > 0));
+            else // x found
+            {
+                recordPath(path);
+                if (fingerSearch_ && finger_ != null)
+                {
+                    if (finger_ == node && node.count() == 1) finger_ = null;           // finger_'s item is deleted
+                    else if (finger_.item().compareTo(x) > 0) fingerRank_--;
+                }
+                if (node.count() > 1)                           // other occurrences remain in node
+                {
+                    addCount(node, -1);
+                    if (fingerSearch_) fingerModCount_ = modCount_;
+                    return x;
+                }
+                if (treeSize_ != 1)
+                {
+                    if (node == max_) max_ = null;              // found again after deletion below
+                    RBTreeNode<T> child;                        // store non-NIL child, if exists
+                    if (node.right() != NIL)
+                    {
+                        if (node.left() != NIL)                 // has both left and right non-NIL child
+                        {
+                            RBTreeNode<T> min = node.right();   // find node with minimum item from right subtree
+                            if (isLeft = (min.left() != NIL)) do min = min.left(); while (min.left() != NIL);
+                            node.setItem(min.item());           // change item
+                            node.setCount(min.count());
+                            if (finger_ == min) finger_ = node; // finger_ and max_ follow their items
+                            if (max_ == min) max_ = node;
+                            node = min;                         // node to be deleted is min
+                        }
+                        child = node.right();
+                    }
+                    else child = node.left();   // upon executing above, node to be deleted has one or no child
+
+                    boolean toModify = !child.red();            // whether modification is needed
+                    if (toModify) toModify = !node.red();       // modify iff both deleted node and its child are black
+                    else
+                    {
+                        child.setRed(false);
+                        if (metrics_ != null) metrics_.recolorings_++;
+                    }
+                    RBTreeNode<T> parent = node.parent();
+                    if (child != NIL) child.setParent(parent);
+                    parent.setChild(child, isLeft);
+                    if (recycle_) release(node);
+                    for (node = parent ; node != head_ ; node = node.parent())   // adjust node size and aggregate
+                        if (aggregate_ == null && !multiset_) node.minusSize(); else update(node);  // count may have moved
+                    if (toModify) modify_Delete(parent, isLeft);    // lacking-black problem
+                    treeSize_--;
+                    modCount_++;
+                    if (fingerSearch_)
+                    {
+                        if (max_ == null) max_ = last();
+                        fingerModCount_ = modCount_;
+                    }
+                }
+                else clear();                   // only (non-NIL) node is root
+                return x;
+            }
+        }
+        while (node != NIL);
+        recordPath(path);
+        return null; // x not found
+    }
+
+    /**
+     * Select i-th item in tree
+     * @param i order, starting from 1
+     * @return i-th item if i is equal or less than the size of tree, otherwise null
+     */
+    @Override
+    public T select(int i)
+    {
+        if (metrics_ == null) return selectItem(i);
+        long start = System.nanoTime();
+        T result = selectItem(i);
+        metrics_.selectLatency_.record(System.nanoTime() - start);
+        return result;
+    }
+
+    private T selectItem(int i)
+    {
+        if (i > treeSize_ || i < 1) return null;    // i is out of range of OS_RBTree
+        if (fingerSearch_) refreshFinger();
+
+        int rank = i;
+        RBTreeNode<T> node = climbToRank(i);
+        i -= base_;
+        int comp;                       // if node has the item looking for, 0 < comp <= count of node
+        int path = 1;                   // number of nodes visited
+        while ((comp = i - node.left().size()) <= 0 || comp > node.count()) // ranks of node follow left child's size
+        {
+            if (comp > 0)               // node is less than the item looking for
+            {
+                i = comp - node.count();    // update i
+                node = node.right();
+            }
+            else node = node.left();    // node is greater than the item looking for
+            path++;
+        }
+        if (fingerSearch_) setFinger(node, rank - comp + 1);
+        recordPath(path);
+        return node.item();
+    }
+
+    /**
+     * Get rank of x in tree; in multiset mode, rank of the first occurrence of x
+     * @param x item to get its rank
+     * @return rank of x if x is in tree, otherwise 0
+     */
+    @Override
+    public int rank(T x)
+    {
+        if (metrics_ == null) return rankItem(x);
+        long start = System.nanoTime();
+        int result = rankItem(x);
+        metrics_.rankLatency_.record(System.nanoTime() - start);
+        return result;
+    }
+
+    private int rankItem(T x)
+    {
+        if (fingerSearch_) refreshFinger();
+        RBTreeNode<T> node = climb(x);
+        int r = base_;
+        int path = 0;                   // number of nodes compared with x
+        while (node != NIL)
+        {
+            path++;
+            int comp = node.item().compareTo(x);
+            if (comp > 0) node = node.left();
+            else if (comp < 0)          // node is less than x
+            {
+                r += node.left().size() + node.count(); // x is greater than node and all items of left subtree
+                node = node.right();
+            }
+            else // x found
+            {
+                r += node.left().size() + 1;
+                if (fingerSearch_) setFinger(node, r);
+                recordPath(path);
+                return r;
+            }
+        }
+        recordPath(path);
+        return 0; // x not found
+    }
+
+    /**
+     * Check whether x is in tree
+     * @param x item to find
+     * @return true iff x is in tree
+     */
+    public boolean contains(T x) { return count(x) != 0; }
+
+    /**
+     * Count occurrences of x in tree
+     * @param x item to count
+     * @return number of occurrences of x; 0 or 1 unless in multiset mode
+     */
+    public int count(T x)
+    {
+        RBTreeNode<T> node = climb(x);
+        while (node != NIL)
+        {
+            int comp = node.item().compareTo(x);
+            if (comp == 0) return node.count();
+            node = node.child(comp > 0);
+        }
+        return 0; // x not found
+    }
+
+    /*
+     * Optimistic walks of ConcurrentOS_RBTree, which run without lock while a writer may modify tree; same as
+     * select, rank, and contains, but each loop is bounded by MAX_HEIGHT, and null nodes and items stop the walk.
+     * Results of a walk that raced a writer are wrong, and are discarded by the caller.
+     */
+    T optimisticSelect(int i)
+    {
+        if (i > treeSize_ || i < 1) return null;
+
+        RBTreeNode<T> node = root();
+        for (int depth = 0 ; depth < MAX_HEIGHT && node != null && node != NIL ; depth++)
+        {
+            RBTreeNode<T> left = node.left();
+            if (left == null) return null;      // new node not yet visible; invalid walk
+            int comp = i - left.size();
+            if (comp <= 0) node = left;
+            else if (comp > node.count())
+            {
+                i = comp - node.count();
+                node = node.right();
+            }
+            else return node.item();    // may be null for recycled node, which validation discards
+        }
+        return null; // invalid walk, to be discarded
+    }
+
+    int optimisticRank(T x)
+    {
+        int r = 0;
+        RBTreeNode<T> node = root();
+        for (int depth = 0 ; depth < MAX_HEIGHT && node != null && node != NIL ; depth++)
+        {
+            T item = node.item();
+            RBTreeNode<T> left = node.left();
+            if (item == null || left == null) return 0;    // recycled or new node; invalid walk
+            int comp = item.compareTo(x);
+            if (comp > 0) node = left;
+            else if (comp < 0)
+            {
+                r += left.size() + node.count();
+                node = node.right();
+            }
+            else return r + left.size() + 1;
+        }
+        return 0;
+    }
+
+    boolean optimisticContains(T x)
+    {
+        RBTreeNode<T> node = root();
+        for (int depth = 0 ; depth < MAX_HEIGHT && node != null && node != NIL ; depth++)
+        {
+            T item = node.item();
+            if (item == null) return false; // recycled node; invalid walk
+            int comp = item.compareTo(x);
+            if (comp == 0) return true;
+            node = node.child(comp > 0);
+        }
+        return false;
+    }
+
+    /**
+     * Get aggregate of all items in tree
+     * @return aggregate of all items, identity if tree is empty
+     * @throws IllegalStateException if tree keeps no aggregate
+     */
+    public long aggregate()
+    {
+        if (aggregate_ == null) throw new IllegalStateException("Tree keeps no aggregate");
+        return agg(root());
+    }
+
+    /**
+     * Get aggregate of items in range [lo, hi] in O(log n)
+     * @param lo least item of range
+     * @param hi greatest item of range
+     * @return aggregate of items x such that lo &lt;= x &lt;= hi, identity if there is no such item
+     * @throws IllegalStateException if tree keeps no aggregate
+     */
+    public long rangeAggregate(T lo, T hi)
+    {
+        if (aggregate_ == null) throw new IllegalStateException("Tree keeps no aggregate");
+
+        RBTreeNode<T> node = root();        // find highest node in range
+        while (node != NIL)
+        {
+            if (node.item().compareTo(lo) < 0) node = node.right();
+            else if (node.item().compareTo(hi) > 0) node = node.left();
+            else break;
+        }
+        if (node == NIL) return aggregate_.identity();
+
+        long suffix = aggregate_.identity();    // aggregate of items equal or greater than lo in left subtree
+        for (RBTreeNode<T> left = node.left() ; left != NIL ; )
+        {
+            if (left.item().compareTo(lo) >= 0)
+            {
+                suffix = aggregate_.combine(aggregate_.combine(value(left), agg(left.right())), suffix);
+                left = left.left();
+            }
+            else left = left.right();
+        }
+        long prefix = aggregate_.identity();    // aggregate of items equal or less than hi in right subtree
+        for (RBTreeNode<T> right = node.right() ; right != NIL ; )
+        {
+            if (right.item().compareTo(hi) <= 0)
+            {
+                prefix = aggregate_.combine(prefix, aggregate_.combine(agg(right.left()), value(right)));
+                right = right.right();
+            }
+            else right = right.left();
+        }
+        return aggregate_.combine(aggregate_.combine(suffix, value(node)), prefix);
+    }
+
+    /**
+     * Select first item whose cumulative weight reaches w in O(log n), e.g. for weighted percentile;
+     * aggregate of tree should be Aggregate.sum of non-negative weights
+     * @param w cumulative weight, starting from 1
+     * @return first item x such that sum of weights of items equal or less than x is equal or greater than w,
+     *         or null if total weight is less than w
+     * @throws IllegalStateException if tree keeps no aggregate
+     */
+    public T selectByWeight(long w)
+    {
+        if (aggregate_ == null) throw new IllegalStateException("Tree keeps no aggregate");
+        if (w > agg(root())) return null;
+
+        RBTreeNode<T> node = root();
+        while (node != NIL)
+        {
+            long left = agg(node.left());
+            if (w <= left) node = node.left();
+            else
+            {
+                w -= left + value(node);
+                if (w <= 0) return node.item();
+                node = node.right();
+            }
+        }
+        return null; // unreachable unless weights are negative
+    }
+
+    /**
+     * Join left, pivot, and right into one tree in O(log n); left and right become empty
+     * @param left tree whose items are all less than pivot
+     * @param pivot item to join
+     * @param right tree whose items are all greater than pivot
+     * @return tree of all items of left, pivot, and right
+     * @throws IllegalArgumentException if items are not in order
+     */
+    public static <T extends Comparable<T>> OS_RBTree<T> join(OS_RBTree<T> left, T pivot, OS_RBTree<T> right)
+    {
+        if ((left.root() != left.NIL && left.last().item().compareTo(pivot) >= 0) ||
+            (right.root() != right.NIL && right.first().item().compareTo(pivot) <= 0))
+            throw new IllegalArgumentException("Items of left, pivot, and items of right are not in increasing order");
+
+        OS_RBTree<T> tree = emptyOf(left, right);
+        tree.setRoot(tree.join(left.subtree(), new RBTreeNode<>(false, pivot, tree.NIL, tree.NIL, tree.NIL),
+                               right.subtree()).root);
+        left.setRoot(left.NIL);     // nodes are moved to tree
+        right.setRoot(right.NIL);
+        return tree;
+    }
+
+    /**
+     * Count items in range [lo, hi] in O(log n)
+     * @param lo least item of range
+     * @param hi greatest item of range
+     * @return number of items x such that lo &lt;= x &lt;= hi
+     */
+    public int countInRange(T lo, T hi)
+    {
+        if (lo.compareTo(hi) > 0) return 0;
+        return countLess(hi, true) - countLess(lo, false);
+    }
+
+    /**
+     * Count items less than x, like rank but x need not be in tree
+     * @param x item to compare
+     * @param inclusive whether to count item equal to x
+     * @return number of items less than (or equal to, if inclusive) x
+     */
+    int countLess(T x, boolean inclusive)
+    {
+        int r = 0;
+        RBTreeNode<T> node = root();
+        while (node != NIL)
+        {
+            int comp = node.item().compareTo(x);
+            if (comp < 0 || (comp == 0 && inclusive))
+            {
+                r += node.left().size() + node.count(); // x is greater than node and all items of left subtree
+                node = node.right();
+            }
+            else node = node.left();
+        }
+        return r;
+    }
+
+    /**
+     * Iterate items in increasing order; each step takes O(1) amortized time and allocates nothing
+     * @return iterator of all items
+     */
+    @Override
+    public Iterator<T> iterator() { return new NodeIterator(first(), true); }
+
+    /**
+     * Iterate items equal or greater than key in increasing order
+     * @param key least item to iterate; need not be in tree
+     * @return iterator of items equal or greater than key
+     */
+    public Iterator<T> iteratorFrom(T key) { return new NodeIterator(ceilingNode(key, true), true); }
+
+    /**
+     * Iterate items in decreasing order
+     * @return iterator of all items
+     */
+    public Iterator<T> descendingIterator() { return new NodeIterator(last(), false); }
+
+    /**
+     * Find node of least item equal or greater than x (or greater than x, if not inclusive)
+     * @return the node, or NIL if there is no such item
+     */
+    RBTreeNode<T> ceilingNode(T x, boolean inclusive)
+    {
+        RBTreeNode<T> node = root(), ceiling = NIL;
+        while (node != NIL)
+        {
+            int comp = node.item().compareTo(x);
+            if (comp > 0 || (comp == 0 && inclusive))
+            {
+                ceiling = node;
+                node = node.left();
+            }
+            else node = node.right();
+        }
+        return ceiling;
+    }
+
+    /**
+     * Find node of greatest item equal or less than x (or less than x, if not inclusive)
+     * @return the node, or NIL if there is no such item
+     */
+    RBTreeNode<T> floorNode(T x, boolean inclusive)
+    {
+        RBTreeNode<T> node = root(), floor = NIL;
+        while (node != NIL)
+        {
+            int comp = node.item().compareTo(x);
+            if (comp < 0 || (comp == 0 && inclusive))
+            {
+                floor = node;
+                node = node.right();
+            }
+            else node = node.left();
+        }
+        return floor;
+    }
+
+    // items of first, last, ceiling and floor node, null if there is no such item; for views that do not touch nodes
+    T firstItem()                           { return itemOf(first());                   }
+    T lastItem()                            { return itemOf(last());                    }
+    T ceilingItem(T x, boolean inclusive)   { return itemOf(ceilingNode(x, inclusive)); }
+    T floorItem(T x, boolean inclusive)     { return itemOf(floorNode(x, inclusive));   }
+
+    private T itemOf(RBTreeNode<T> node) { return (node == NIL) ? null : node.item(); }
+
+    /**
+     * Iterate items from bound, e.g. for a view of a range
+     * @param bound first item to iterate (need not be in tree), or null to iterate from first (or last) item
+     * @param inclusive whether item equal to bound is iterated
+     * @param ascending iterate in increasing order if true, otherwise decreasing
+     * @return iterator starting at ceiling (or floor, if not ascending) of bound
+     */
+    NodeIterator iteratorFrom(T bound, boolean inclusive, boolean ascending)
+    {
+        RBTreeNode<T> first;
+        if (bound == null) first = ascending ? first() : last();
+        else first = ascending ? ceilingNode(bound, inclusive) : floorNode(bound, inclusive);
+        return new NodeIterator(first, ascending);
+    }
+
+    /**
+     * Find next node in order, using parent pointers
+     * @param node non-NIL node
+     * @param isNext next node if true, otherwise previous node
+     * @return next (or previous) node, or NIL if node is the last (or first)
+     */
+    RBTreeNode<T> successor(RBTreeNode<T> node, boolean isNext)
+    {
+        if (node.child(!isNext) != NIL)     // leftmost node of right subtree (for next)
+        {
+            node = node.child(!isNext);
+            while (node.child(isNext) != NIL) node = node.child(isNext);
+            return node;
+        }
+        while (!node.isRoot())              // first ancestor whose left subtree has node (for next)
+        {
+            RBTreeNode<T> parent = node.parent();
+            if (node == parent.child(isNext)) return parent;
+            node = parent;
+        }
+        return NIL;
+    }
+
+    /**
+     * Iterator walking nodes by parent pointers; fails fast on modification other than its own remove
+     */
+    class NodeIterator implements Iterator<T>
+    {
+        private RBTreeNode<T> next;
+        private int repeat;             // occurrences of next item not yet returned
+        private final boolean ascending;
+        private T last = null;          // item returned by last call of next, to be removed
+        private int expectedModCount = modCount_;
+
+        NodeIterator(RBTreeNode<T> first, boolean ascending)
+        {
+            this.next = first;
+            this.repeat = first.count();
+            this.ascending = ascending;
+        }
+
+        @Override
+        public boolean hasNext() { return next != NIL; }
+
+        // item to be returned by next call of next, or null if there is none
+        T peek() { return (next == NIL) ? null : next.item(); }
+
+        @Override
+        public T next()
+        {
+            if (next == NIL) throw new NoSuchElementException();
+            if (modCount_ != expectedModCount) throw new ConcurrentModificationException();
+            last = next.item();
+            if (--repeat == 0)
+            {
+                next = successor(next, ascending);
+                repeat = next.count();
+            }
+            return last;
+        }
+
+        /**
+         * Delete item (occurrence) returned by last call of next; since delete may move items between nodes,
+         * next node is found again in O(log n)
+         */
+        @Override
+        public void remove()
+        {
+            if (last == null) throw new IllegalStateException();
+            if (modCount_ != expectedModCount) throw new ConcurrentModificationException();
+            boolean more = (next != NIL && next.item().compareTo(last) == 0);  // occurrences of last remain to return
+            delete(last);
+            next = ascending ? ceilingNode(last, more) : floorNode(last, more);
+            if (!more) repeat = next.count();   // moved to next item; otherwise occurrences to return are unchanged
+            last = null;
+            expectedModCount = modCount_;
+        }
+    }
+
+    /**
+     * Split tree at key in O(log n); items less than key remain in this tree
+     * @param key item to split at; need not be in tree
+     * @return tree of items equal or greater than key
+     */
+    public OS_RBTree<T> split(T key)
+    {
+        Parts<T> parts = split(subtree(), key);
+        OS_RBTree<T> tree = new OS_RBTree<>(aggregate_, multiset_);
+        tree.setRoot((parts.found == null) ? parts.right.root : join(new Subtree<>(NIL, 0), parts.found, parts.right).root);
+        setRoot(parts.left.root);
+        return tree;
+    }
+
+    /**
+     * Split tree at rank in O(log n); first k items remain in this tree <br>
+     * In multiset mode, occurrences of an item are not separated; if k falls among them, all go to the rest.
+     * @param k number of items to remain; clamped to [0, treeSize()]
+     * @return tree of the rest items
+     */
+    public OS_RBTree<T> splitAtRank(int k)
+    {
+        Parts<T> parts = splitAtRank(subtree(), Math.max(0, Math.min(k, treeSize_)));
+        OS_RBTree<T> tree = new OS_RBTree<>(aggregate_, multiset_);
+        tree.setRoot(parts.right.root);
+        setRoot(parts.left.root);
+        return tree;
+    }
+
+    /**
+     * Concatenate two trees in O(log n); a and b become empty
+     * @param a tree whose items are all less than items of b
+     * @param b tree
+     * @return tree of all items of a and b
+     * @throws IllegalArgumentException if items are not in order
+     */
+    public static <T extends Comparable<T>> OS_RBTree<T> concat(OS_RBTree<T> a, OS_RBTree<T> b)
+    {
+        if (a.root() != a.NIL && b.root() != b.NIL && a.last().item().compareTo(b.first().item()) >= 0)
+            throw new IllegalArgumentException("Items of a and items of b are not in increasing order");
+
+        OS_RBTree<T> tree = emptyOf(a, b);
+        tree.setRoot(tree.join(a.subtree(), b.subtree()).root);
+        a.setRoot(a.NIL);           // nodes are moved to tree
+        b.setRoot(b.NIL);
+        return tree;
+    }
+
+    /**
+     * Union of two trees, computed in parallel; a and b become empty <br>
+     * Work is O(m log(n/m + 1)) for sizes m &lt;= n, and is least when b is the smaller tree.
+     * In multiset mode, counts of equal items are added; intersection takes the lesser count,
+     * and difference subtracts counts.
+     * @param a tree
+     * @param b tree; items also in a are discarded
+     * @return tree of items in a or b
+     */
+    public static <T extends Comparable<T>> OS_RBTree<T> union(OS_RBTree<T> a, OS_RBTree<T> b)
+    {
+        OS_RBTree<T> tree = emptyOf(a, b);
+        tree.setRoot(ForkJoinPool.commonPool().invoke(tree.new SetTask(UNION, b.subtree(), a.subtree())).root);
+        a.setRoot(a.NIL);           // nodes are moved to tree
+        b.setRoot(b.NIL);
+        return tree;
+    }
+
+    /**
+     * Intersection of two trees, computed in parallel; a and b become empty
+     * @param a tree
+     * @param b tree
+     * @return tree of items in both a and b; items are taken from a
+     */
+    public static <T extends Comparable<T>> OS_RBTree<T> intersection(OS_RBTree<T> a, OS_RBTree<T> b)
+    {
+        OS_RBTree<T> tree = emptyOf(a, b);
+        tree.setRoot(ForkJoinPool.commonPool().invoke(tree.new SetTask(INTERSECTION, a.subtree(), b.subtree())).root);
+        a.setRoot(a.NIL);           // nodes are moved to tree
+        b.setRoot(b.NIL);
+        return tree;
+    }
+
+    /**
+     * Difference of two trees, computed in parallel; a and b become empty
+     * @param a tree
+     * @param b tree
+     * @return tree of items in a but not in b
+     */
+    public static <T extends Comparable<T>> OS_RBTree<T> difference(OS_RBTree<T> a, OS_RBTree<T> b)
+    {
+        OS_RBTree<T> tree = emptyOf(a, b);
+        tree.setRoot(ForkJoinPool.commonPool().invoke(tree.new SetTask(DIFFERENCE, a.subtree(), b.subtree())).root);
+        a.setRoot(a.NIL);           // nodes are moved to tree
+        b.setRoot(b.NIL);
+        return tree;
+    }
+
+    /**
+     * Insert all items; same as inserting them one by one, but built in linear time and merged in parallel <br>
+     * Items already in tree are kept, as insert does.
+     * @param sortedItems items to insert in strictly increasing order
+     * @throws IllegalArgumentException if items are not in strictly increasing order
+     */
+    public void insertAll(T[] sortedItems)
+    {
+        OS_RBTree<T> batch = fromSorted(sortedItems, aggregate_);
+        setRoot(ForkJoinPool.commonPool().invoke(new SetTask(UNION, batch.subtree(), subtree())).root);
+    }
+
+    /**
+     * Delete all items; same as deleting them one by one, but built in linear time and merged in parallel
+     * @param sortedItems items to delete in strictly increasing order; need not be in tree
+     * @throws IllegalArgumentException if items are not in strictly increasing order
+     */
+    public void deleteAll(T[] sortedItems)
+    {
+        OS_RBTree<T> batch = fromSorted(sortedItems, aggregate_);
+        setRoot(ForkJoinPool.commonPool().invoke(new SetTask(DIFFERENCE, subtree(), batch.subtree())).root);
+    }
+
+    /**
+     * Get ranks of all keys; same as calling rank for each key, but in one descent that splits keys at each node,
+     * so that nodes on the common paths of keys are visited once; large batch is split across cores
+     * @param sortedKeys keys in non-decreasing order
+     * @return ranks of keys, 0 for keys not in tree
+     * @throws IllegalArgumentException if keys are not in non-decreasing order
+     */
+    public int[] rankAll(T[] sortedKeys)
+    {
+        for (int i = 1 ; i < sortedKeys.length ; i++)
+            if (sortedKeys[i - 1].compareTo(sortedKeys[i]) > 0) throw new IllegalArgumentException("Keys are not sorted");
+        int[] ranks = new int[sortedKeys.length];
+        RankTask task = new RankTask(root(), sortedKeys, ranks, 0, sortedKeys.length, 0);
+        if (sortedKeys.length <= SEQUENTIAL_QUERIES) task.compute();
+        else ForkJoinPool.commonPool().invoke(task);
+        return ranks;
+    }
+
+    /**
+     * Select items of all orders; same as calling select for each order, but in one descent that splits orders
+     * at each node, so that nodes on the common paths of orders are visited once; large batch is split across cores
+     * @param sortedRanks orders in non-decreasing order
+     * @param out array to store items, out[i] for sortedRanks[i]; null for orders out of range of tree
+     * @return out
+     * @throws IllegalArgumentException if orders are not in non-decreasing order
+     */
+    public T[] selectAll(int[] sortedRanks, T[] out)
+    {
+        for (int i = 1 ; i < sortedRanks.length ; i++)
+            if (sortedRanks[i - 1] > sortedRanks[i]) throw new IllegalArgumentException("Orders are not sorted");
+        int lo = upperBound(sortedRanks, 0, sortedRanks.length, 0);             // orders in [lo, hi) are in range
+        int hi = upperBound(sortedRanks, lo, sortedRanks.length, treeSize_);
+        Arrays.fill(out, 0, lo, null);
+        Arrays.fill(out, hi, sortedRanks.length, null);
+        SelectTask task = new SelectTask(root(), sortedRanks, out, lo, hi, 0);
+        if (hi - lo <= SEQUENTIAL_QUERIES) task.compute();
+        else ForkJoinPool.commonPool().invoke(task);
+        return out;
+    }
+
+    /**
+     * Empty tree to hold result of operation on a and b, keeping their aggregate and mode
+     * @throws IllegalArgumentException if a and b keep different aggregates or modes
+     */
+    private static <T extends Comparable<T>> OS_RBTree<T> emptyOf(OS_RBTree<T> a, OS_RBTree<T> b)
+    {
+        if (a.aggregate_ != b.aggregate_) throw new IllegalArgumentException("Trees keep different aggregates");
+        if (a.multiset_ != b.multiset_) throw new IllegalArgumentException("Set and multiset cannot be combined");
+        return new OS_RBTree<>(a.aggregate_, a.multiset_);
+    }
+
+    // join-based operations
+    private static final int UNION = 0, INTERSECTION = 1, DIFFERENCE = 2;
+    private static final int SEQUENTIAL_SIZE = 1 << 12;     // set operation on smaller trees is not forked
+
+    /**
+     * Set operation on two detached subtrees, following Blelloch et al., "Just Join for Parallel Ordered Sets" <br>
+     * For equal items, union keeps the one of b and intersection keeps the one of a;
+     * in multiset mode, the kept node takes the sum, lesser, or difference of counts.
+     */
+    @SuppressWarnings("serial")         // tasks are never serialized
+    private class SetTask extends RecursiveTask<Subtree<T>>
+    {
+        private final int operation;
+        private final Subtree<T> a, b;
+
+        SetTask(int operation, Subtree<T> a, Subtree<T> b)
+        {
+            this.operation = operation;
+            this.a = a;
+            this.b = b;
+        }
+
+        @Override
+        protected Subtree<T> compute()
+        {
+            if (a.root == NIL) return (operation == UNION) ? b : a;
+            if (b.root == NIL) return (operation == INTERSECTION) ? b : a;
+
+            boolean toFork = (a.root.size() + b.root.size() > SEQUENTIAL_SIZE);
+
+            // split b at root of a for union and intersection, and a at root of b for difference
+            Subtree<T> splitter = (operation == DIFFERENCE) ? b : a, splitted = (operation == DIFFERENCE) ? a : b;
+            RBTreeNode<T> pivot = splitter.root;
+            int bh = splitter.bh - (pivot.red() ? 0 : 1);   // black height of children of pivot
+            Subtree<T> pivotLeft = new Subtree<>(pivot.left(), bh), pivotRight = new Subtree<>(pivot.right(), bh);
+            Parts<T> parts = split(splitted, pivot.item());
+
+            SetTask leftTask, rightTask;
+            if (operation == DIFFERENCE)
+            {
+                leftTask = new SetTask(operation, parts.left, pivotLeft);
+                rightTask = new SetTask(operation, parts.right, pivotRight);
+            }
+            else
+            {
+                leftTask = new SetTask(operation, pivotLeft, parts.left);
+                rightTask = new SetTask(operation, pivotRight, parts.right);
+            }
+            Subtree<T> left, right;
+            if (toFork)
+            {
+                rightTask.fork();
+                left = leftTask.compute();
+                right = rightTask.join();
+            }
+            else
+            {
+                left = leftTask.compute();
+                right = rightTask.compute();
+            }
+
+            if (operation == UNION)
+            {
+                if (parts.found == null) return OS_RBTree.this.join(left, pivot, right);
+                if (multiset_) parts.found.setCount(parts.found.count() + pivot.count());
+                return OS_RBTree.this.join(left, parts.found, right);
+            }
+            if (operation == INTERSECTION && parts.found != null)
+            {
+                if (multiset_) pivot.setCount(Math.min(pivot.count(), parts.found.count()));
+                return OS_RBTree.this.join(left, pivot, right);
+            }
+            if (operation == DIFFERENCE && multiset_ && parts.found != null && parts.found.count() > pivot.count())
+            {
+                parts.found.setCount(parts.found.count() - pivot.count());
+                return OS_RBTree.this.join(left, parts.found, right);
+            }
+            return OS_RBTree.this.join(left, right);          // pivot is not in result
+        }
+    }
+
+    private static final int SEQUENTIAL_QUERIES = 1 << 10;  // smaller batch of rankAll and selectAll is not forked
+
+    /**
+     * Ranks of keys[lo, hi) in subtree of node, before which there are base occurrences
+     */
+    @SuppressWarnings("serial")         // tasks are never serialized
+    private class RankTask extends RecursiveAction
+    {
+        private final RBTreeNode<T> node;
+        private final T[] keys;
+        private final int[] ranks;
+        private final int lo, hi, base;
+
+        RankTask(RBTreeNode<T> node, T[] keys, int[] ranks, int lo, int hi, int base)
+        {
+            this.node = node;
+            this.keys = keys;
+            this.ranks = ranks;
+            this.lo = lo;
+            this.hi = hi;
+            this.base = base;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if (hi - lo <= SEQUENTIAL_QUERIES) rankAll(node, keys, ranks, lo, hi, base);
+            else if (node != NIL)
+            {
+                int from = lowerBound(keys, lo, hi, node.item()), to = from;
+                for ( ; to < hi && keys[to].compareTo(node.item()) == 0 ; to++) ranks[to] = base + node.left().size() + 1;
+                invokeAll(new RankTask(node.left(), keys, ranks, lo, from, base),
+                          new RankTask(node.right(), keys, ranks, to, hi, base + node.left().size() + node.count()));
+            }
+        }
+    }
+
+    // sequential part of RankTask
+    private void rankAll(RBTreeNode<T> node, T[] keys, int[] ranks, int lo, int hi, int base)
+    {
+        while (lo < hi && node != NIL)  // keys not in tree are left 0
+        {
+            int from = lowerBound(keys, lo, hi, node.item()), to = from;
+            for ( ; to < hi && keys[to].compareTo(node.item()) == 0 ; to++) ranks[to] = base + node.left().size() + 1;
+            rankAll(node.left(), keys, ranks, lo, from, base);
+            base += node.left().size() + node.count();
+            lo = to;                                                                    // keys greater than node
+            node = node.right();
+        }
+    }
 
-    // Constructor
-    public OS_RBTree()
+    /**
+     * Items of orders ranks[lo, hi) in subtree of node, before which there are base occurrences
+     */
+    @SuppressWarnings("serial")
+    private class SelectTask extends RecursiveAction
     {
-        NIL.setLeft(NIL);   // root of empty tree is NIL
-        NIL.minusSize();    // to make size 0
+        private final RBTreeNode<T> node;
+        private final int[] ranks;
+        private final T[] out;
+        private final int lo, hi, base;
+
+        SelectTask(RBTreeNode<T> node, int[] ranks, T[] out, int lo, int hi, int base)
+        {
+            this.node = node;
+            this.ranks = ranks;
+            this.out = out;
+            this.lo = lo;
+            this.hi = hi;
+            this.base = base;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if (hi - lo <= SEQUENTIAL_QUERIES) selectAll(node, ranks, out, lo, hi, base);
+            else
+            {
+                int nodeBase = base + node.left().size();   // orders of node are (nodeBase, nodeBase + count]
+                int from = upperBound(ranks, lo, hi, nodeBase), to = from;
+                for ( ; to < hi && ranks[to] <= nodeBase + node.count() ; to++) out[to] = node.item();
+                invokeAll(new SelectTask(node.left(), ranks, out, lo, from, base),
+                          new SelectTask(node.right(), ranks, out, to, hi, nodeBase + node.count()));
+            }
+        }
     }
 
-    // Accessors
-    RBTreeNode<T> root()    { return NIL.left(); } // root is stored at NIL.left_
-    public int treeSize()   { return treeSize_;  }
+    // sequential part of SelectTask; all orders are within subtree of node
+    private void selectAll(RBTreeNode<T> node, int[] ranks, T[] out, int lo, int hi, int base)
+    {
+        while (lo < hi)
+        {
+            int nodeBase = base + node.left().size();
+            int from = upperBound(ranks, lo, hi, nodeBase), to = from;
+            for ( ; to < hi && ranks[to] <= nodeBase + node.count() ; to++) out[to] = node.item();  // orders of node
+            selectAll(node.left(), ranks, out, lo, from, base);
+            base = nodeBase + node.count();
+            lo = to;                                                                    // orders after node
+            node = node.right();
+        }
+    }
+
+    // first index in [lo, hi) of sorted keys whose key is equal or greater than x, or hi if none
+    private static <T extends Comparable<T>> int lowerBound(T[] keys, int lo, int hi, T x)
+    {
+        while (lo < hi)
+        {
+            int mid = (lo + hi) >>> 1;
+            if (keys[mid].compareTo(x) < 0) lo = mid + 1; else hi = mid;
+        }
+        return lo;
+    }
+
+    // first index in [lo, hi) of sorted orders greater than x, or hi if none
+    private static int upperBound(int[] ranks, int lo, int hi, int x)
+    {
+        while (lo < hi)
+        {
+            int mid = (lo + hi) >>> 1;
+            if (ranks[mid] <= x) lo = mid + 1; else hi = mid;
+        }
+        return lo;
+    }
 
     /**
-     * Insert x in tree if x is not in tree
-     * @param x item to insert
-     * @return x if x is not in tree, otherwise null
+     * Join subtrees with pivot node; rotations keep root node of the taller subtree as root
+     * @param left subtree whose items are all less than pivot
+     * @param pivot detached node to join; its color and links are overwritten
+     * @param right subtree whose items are all greater than pivot
+     * @return joined subtree
      */
-    public T insert(T x)
+    private Subtree<T> join(Subtree<T> left, RBTreeNode<T> pivot, Subtree<T> right)
     {
-        if (root() == NIL)  // empty tree
+        RBTreeNode<T> l = left.root, r = right.root;
+        int lbh = left.bh, rbh = right.bh;
+        if (l.red())            // make roots black
         {
-            NIL.setLeft(new RBTreeNode<>(false, x, NIL, NIL, NIL)); // new root
-            treeSize_++;
-            return x;
+            l.setRed(false);
+            lbh++;
         }
+        if (r.red())
+        {
+            r.setRed(false);
+            rbh++;
+        }
+        if (l != NIL) l.setParent(NIL);
+        if (r != NIL) r.setParent(NIL);
 
-        RBTreeNode<T> node;
-        RBTreeNode<T> child = root();
-        boolean isLeft;     // whether child is left_ of node
-        do // find x
+        if (lbh == rbh)         // pivot becomes root
         {
-            node = child;
-            int comp = node.item().compareTo(x);
-            if (comp != 0) child = node.child(isLeft = (comp > 0));
-            else return null; // x found
+            pivot.setRed(false);
+            pivot.setParent(NIL);
+            pivot.setLeft(l);
+            pivot.setRight(r);
+            if (l != NIL) l.setParent(pivot);
+            if (r != NIL) r.setParent(pivot);
+            update(pivot);
+            return new Subtree<>(pivot, lbh + 1);
         }
-        while (child != NIL);
 
-        node.setChild(child = new RBTreeNode<>(true, x, node, NIL, NIL), isLeft);
+        boolean isLeft = (lbh < rbh);           // whether pivot goes into left spine of right
+        RBTreeNode<T> top = isLeft ? r : l;     // taller subtree
+        RBTreeNode<T> low = isLeft ? l : r;
+        int target = isLeft ? lbh : rbh;
+        int bh = isLeft ? rbh : lbh;
 
-        do node.plusSize(); while ((node = node.parent()) != NIL);      // adjust node size
-        if (child.parent().red()) modify_Insert(child);                 // double-red problem
-        treeSize_++;
-        return x;
+        // find black node on the spine of top whose black height is same as low
+        RBTreeNode<T> node = top, parent = NIL;
+        while (node.red() || bh != target)
+        {
+            if (!node.red()) bh--;
+            parent = node;
+            node = node.child(isLeft);
+        }
+
+        pivot.setRed(true);
+        pivot.setParent(parent);
+        pivot.setChild(low, isLeft);
+        pivot.setChild(node, !isLeft);
+        if (low != NIL) low.setParent(pivot);
+        if (node != NIL) node.setParent(pivot);
+        update(pivot);
+        parent.setChild(pivot, isLeft);
+        for (node = parent ; ; node = node.parent())    // adjust node size
+        {
+            update(node);
+            if (node == top) break;
+        }
+
+        boolean grown = parent.red() && modify_Insert(pivot);   // double-red problem
+        return new Subtree<>(top, (isLeft ? rbh : lbh) + (grown ? 1 : 0));
     }
 
     /**
-     * Delete x from tree if x is in tree
-     * @param x item to delete
-     * @return x if x is in tree, otherwise null
+     * Join subtrees without pivot; the last node of left is taken as pivot
+     * @param left subtree whose items are all less than items of right
+     * @param right subtree
+     * @return joined subtree
      */
-    public T delete(T x)
+    private Subtree<T> join(Subtree<T> left, Subtree<T> right)
     {
-        if (root() == NIL) return null; // empty tree
+        if (left.root == NIL) return right;
+        if (right.root == NIL) return left;
 
-        RBTreeNode<T> node = root();
-        boolean isLeft = true;  // whether child is left_ of node
-        do // find x
+        // split off last node; it is the only node of right part of split at rank size - 1
+        Parts<T> parts = splitAtRank(left, left.root.size() - 1);
+        return join(parts.left, parts.right.root, right);
+    }
+
+    /**
+     * Split subtree at key; nodes on the path to key are used as pivots to join the rest bottom-up
+     * @param subtree subtree to split
+     * @param key item to split at
+     * @return subtree of items less than key, node of key (null if not found), and subtree of items greater than key
+     */
+    private Parts<T> split(Subtree<T> subtree, T key)
+    {
+        Parts<T> parts = new Parts<>();
+        parts.left = parts.right = new Subtree<>(NIL, 0);
+        if (subtree.root == NIL) return parts;
+
+        // find key, keeping black height of node
+        RBTreeNode<T> node = subtree.root, last;
+        int bh = subtree.bh;
+        boolean isLeft = false; // whether path goes to left_ of last
+        do
         {
-            int comp = node.item().compareTo(x);
-            if (comp != 0) node = node.child(isLeft = (comp > 0));
-            else // x found
-            {
-                if (treeSize_ != 1)
-                {
-                    RBTreeNode<T> child;                        // store non-NIL child, if exists
-                    if (node.right() != NIL)
-                    {
-                        if (node.left() != NIL)                 // has both left and right non-NIL child
-                        {
-                            RBTreeNode<T> min = node.right();   // find node with minimum item from right subtree
-                            if (isLeft = (min.left() != NIL)) do min = min.left(); while (min.left() != NIL);
-                            node.setItem(min.item());           // change item
-                            node = min;                         // node to be deleted is min
-                        }
-                        child = node.right();
-                    }
-                    else child = node.left();   // upon executing above, node to be deleted has one or no child
+            last = node;
+            int comp = node.item().compareTo(key);
+            if (comp == 0) break;
+            if (!node.red()) bh--;
+            node = node.child(isLeft = (comp > 0));
+        }
+        while (node != NIL);
 
-                    boolean toModify = !child.red();            // whether modification is needed
-                    if (toModify) toModify = !node.red();       // modify iff both deleted node and its child are black
-                    else child.setRed(false);
-                    child.setParent(node.parent());
-                    node.parent().setChild(child, isLeft);
-                    while ((node = node.parent()) != NIL) node.minusSize();     // adjust node size
-                    if (toModify) modify_Delete(child, isLeft); // lacking-black problem
-                    treeSize_--;
-                }
-                else clear();                   // only (non-NIL) node is root
-                return x;
-            }
+        if (node == NIL) return joinUp(parts, subtree, last, 0, isLeft);
+
+        // key found
+        int childBh = bh - (node.red() ? 0 : 1);
+        parts.found = node;
+        parts.left = new Subtree<>(node.left(), childBh);
+        parts.right = new Subtree<>(node.right(), childBh);
+        if (node == subtree.root) return parts;
+        return joinUp(parts, subtree, node.parent(), bh, node == node.parent().left());
+    }
+
+    /**
+     * Split subtree so that left part has k items
+     * @param subtree subtree to split
+     * @param k number of items of left part, in [0, size of subtree]
+     * @return subtree of first k items, and subtree of the rest; found is null <br>
+     *         a node whose occurrences straddle k goes to the rest
+     */
+    private Parts<T> splitAtRank(Subtree<T> subtree, int k)
+    {
+        Parts<T> parts = new Parts<>();
+        parts.left = parts.right = new Subtree<>(NIL, 0);
+        if (subtree.root == NIL) return parts;
+
+        // find position between k-th and (k + 1)-th item, keeping black height of node
+        RBTreeNode<T> node = subtree.root, last;
+        boolean isLeft;     // whether path goes to left_ of last
+        do
+        {
+            last = node;
+            int comp = k - node.left().size();  // node is in left part iff comp >= its count
+            if (!(isLeft = (comp < node.count()))) k = comp - node.count();
+            node = node.child(isLeft);
         }
         while (node != NIL);
-        return null; // x not found
+        return joinUp(parts, subtree, last, 0, isLeft);
     }
 
     /**
-     * Select i-th item in tree
-     * @param i order, starting from 1
-     * @return i-th item if i is equal or less than the size of tree, otherwise null
+     * Join nodes on the path from node up to root of subtree into split parts, bottom-up
+     * @param parts parts split below node
+     * @param subtree subtree being split
+     * @param node deepest node on the path which is not in parts
+     * @param childBh black height of children of node
+     * @param isLeft whether the path goes to left_ of node; if so, node and its right subtree go to right part
+     * @return parts
      */
-    public T select(int i)
+    private Parts<T> joinUp(Parts<T> parts, Subtree<T> subtree, RBTreeNode<T> node, int childBh, boolean isLeft)
+    {
+        while (true)
+        {
+            // read links of node before it is joined as pivot
+            boolean isRoot = (node == subtree.root);
+            RBTreeNode<T> parent = node.parent();
+            boolean parentIsLeft = !isRoot && (node == parent.left());
+            int bh = childBh + (node.red() ? 0 : 1);
+
+            if (isLeft) parts.right = join(parts.right, node, new Subtree<>(node.right(), childBh));
+            else parts.left = join(new Subtree<>(node.left(), childBh), node, parts.left);
+            if (isRoot) return parts;
+            node = parent;
+            childBh = bh;
+            isLeft = parentIsLeft;
+        }
+    }
+
+    /**
+     * Detach root of tree with its black height; tree itself is left unchanged
+     * @return subtree of all items
+     */
+    private Subtree<T> subtree() { return new Subtree<>(root(), blackHeight()); }
+
+    // first and last node of tree, NIL if tree is empty
+    RBTreeNode<T> first()
     {
-        if (i > treeSize_) return null; // i is greater than the size of OS_RBTree
+        RBTreeNode<T> node = root();
+        if (node != NIL) while (node.left() != NIL) node = node.left();
+        return node;
+    }
 
+    RBTreeNode<T> last()
+    {
         RBTreeNode<T> node = root();
-        int comp;                       // if node has the item looking for, comp = 0
-        while ((comp = i - (node.left().size() + 1)) != 0)  // rank of node is 1 + left child's size
+        if (node != NIL) while (node.right() != NIL) node = node.right();
+        return node;
+    }
+
+    /**
+     * Subtree of detached root with its black height (number of black nodes on path to NIL, excluding NIL)
+     */
+    private static class Subtree<T>
+    {
+        final RBTreeNode<T> root;
+        final int bh;
+
+        Subtree(RBTreeNode<T> root, int bh)
         {
-            if (comp > 0)               // node is less than the item looking for
-            {
-                i = comp;               // update i
-                node = node.right();
-            }
-            else node = node.left();    // node is greater than the item looking for
+            this.root = root;
+            this.bh = bh;
         }
-        return node.item();
     }
 
     /**
-     * Get rank of x in tree
-     * @param x item to get its rank
-     * @return rank of x if x is in tree, otherwise 0
+     * Result of split
      */
-    public int rank(T x)
+    private static class Parts<T>
     {
-        int r = 0;
-        RBTreeNode<T> node = root();
-        while (node != NIL)
+        Subtree<T> left, right;
+        RBTreeNode<T> found;    // node of key, or null if key is not found
+    }
+
+    /**
+     * Set whether nodes of deleted items are kept and reused by insert, so that insert and delete
+     * of the same number of items do not allocate; turning it off releases kept nodes
+     * @param recycle whether to recycle nodes
+     */
+    public void setNodeRecycling(boolean recycle)
+    {
+        recycle_ = recycle;
+        if (!recycle) free_ = null;
+    }
+
+    /**
+     * Set whether insert, delete, select, rank, and count start from the node accessed last (finger)
+     * instead of root, climbing up with parent pointers only as far as needed. Then an access at distance d
+     * from the previous one typically takes O(log d) comparisons, and insert of a new maximum takes one;
+     * insert and delete still adjust sizes up to root. Select and rank modify the finger, so with finger search
+     * they must not be called concurrently.
+     * @param fingerSearch whether to use finger search
+     */
+    public void setFingerSearch(boolean fingerSearch)
+    {
+        fingerSearch_ = fingerSearch;
+        finger_ = max_ = null;
+        fingerModCount_ = modCount_ - 1;
+    }
+
+    /**
+     * Start recording metrics of tree; metrics already enabled are kept
+     * @return live metrics of tree
+     * @throws IllegalStateException if tree is wrapped by ConcurrentOS_RBTree, since its concurrent readers
+     *         would write counters without synchronization
+     */
+    public OS_RBTreeMetrics enableMetrics()
+    {
+        if (shared_) throw new IllegalStateException("Metrics cannot be enabled on tree shared by ConcurrentOS_RBTree");
+        if (metrics_ == null) metrics_ = new OS_RBTreeMetrics(this);
+        return metrics_;
+    }
+
+    /**
+     * Stop recording metrics; metrics returned before stop changing
+     */
+    public void disableMetrics() { metrics_ = null; }
+
+    /**
+     * @return live metrics of tree, or null if metrics are not enabled
+     */
+    public OS_RBTreeMetrics metrics() { return metrics_; }
+
+    // mark tree as wrapped by ConcurrentOS_RBTree, so that metrics cannot be enabled
+    void setShared() { shared_ = true; }
+
+    // record length of a search path, if metrics are enabled
+    private void recordPath(int length) { if (metrics_ != null) metrics_.recordPath(length); }
+
+    // make finger_ and max_ valid; finger_ is dropped if tree has been modified other than by insert and delete
+    private void refreshFinger()
+    {
+        if (fingerModCount_ == modCount_) return;
+        finger_ = null;
+        max_ = last();
+        fingerModCount_ = modCount_;
+    }
+
+    private void setFinger(RBTreeNode<T> node, int rank)
+    {
+        finger_ = node;
+        fingerRank_ = rank;
+        fingerModCount_ = modCount_;
+    }
+
+    /**
+     * Find node from which to search x: climbing up from finger, the lowest one whose subtree can contain x
+     * @param x item to find
+     * @return such node, or root if there is no valid finger; base_ is set to the number of occurrences before its subtree
+     */
+    private RBTreeNode<T> climb(T x)
+    {
+        if (!fingerSearch_ || finger_ == null || fingerModCount_ != modCount_)
         {
-            int comp = node.item().compareTo(x);
-            if (comp > 0) node = node.left();
-            else if (comp < 0)          // node is less than x
+            base_ = 0;
+            return root();
+        }
+        RBTreeNode<T> node = finger_;
+        int base = fingerRank_ - 1 - node.left().size();
+        int comp = node.item().compareTo(x);
+        boolean right = (comp < 0);     // whether x is greater than node
+        while (comp != 0 && !node.isRoot())
+        {
+            RBTreeNode<T> parent = node.parent();
+            boolean isLeft = (node == parent.left());
+            if (right == isLeft)        // parent bounds subtree of node on the side of x
             {
-                r += node.left().size() + 1;            // x is greater than node and all items of left subtree
-                node = node.right();
+                comp = parent.item().compareTo(x);
+                if (right ? comp > 0 : comp < 0) break;     // x is within subtree of node
+                right = (comp < 0);
             }
-            else return r + node.left().size() + 1;     // x found
+            if (!isLeft) base -= parent.left().size() + parent.count();
+            node = parent;
         }
-        return 0; // x not found
+        base_ = base;
+        return node;
     }
 
     /**
-     * Modify tree to maintain red-black property; called only if there is double-red problem
-     * @param node (child) node where double-red problem has occurred
+     * Find node from which to select i-th item: climbing up from finger, the lowest one whose subtree contains it
+     * @param i order, within range of tree
+     * @return such node, or root if there is no valid finger; base_ is set to the number of occurrences before its subtree
+     */
+    private RBTreeNode<T> climbToRank(int i)
+    {
+        if (!fingerSearch_ || finger_ == null || fingerModCount_ != modCount_)
+        {
+            base_ = 0;
+            return root();
+        }
+        RBTreeNode<T> node = finger_;
+        int base = fingerRank_ - 1 - node.left().size();
+        while ((i <= base || i > base + node.size()) && !node.isRoot())
+        {
+            RBTreeNode<T> parent = node.parent();
+            if (node != parent.left()) base -= parent.left().size() + parent.count();
+            node = parent;
+        }
+        base_ = base;
+        return node;
+    }
+
+    /**
+     * Create node, reusing freed one if exists
+     * @return new node with no child
+     */
+    private RBTreeNode<T> newNode(boolean red, T item, RBTreeNode<T> parent)
+    {
+        RBTreeNode<T> node = free_;
+        if (node == null) return new RBTreeNode<>(red, item, parent, NIL, NIL);
+
+        free_ = node.parent();
+        if (node.left() != NIL)     // children of cleared tree are freed lazily
+        {
+            node.left().setParent(free_);
+            free_ = node.left();
+        }
+        if (node.right() != NIL)
+        {
+            node.right().setParent(free_);
+            free_ = node.right();
+        }
+        node.reset(red, item, parent, NIL, NIL);
+        return node;
+    }
+
+    /**
+     * Put detached node to free list
+     * @param node node detached from tree; its children are not freed
+     */
+    private void release(RBTreeNode<T> node)
+    {
+        node.reset(false, null, free_, NIL, NIL);
+        free_ = node;
+    }
+
+    /**
+     * Change count of occurrences in node, adjusting size and aggregate up to root
+     * @param node node of item
+     * @param delta change of count; count must remain positive
+     */
+    private void addCount(RBTreeNode<T> node, int delta)
+    {
+        node.setCount(node.count() + delta);
+        do update(node); while ((node = node.parent()) != head_);
+        treeSize_ += delta;
+        modCount_++;
+    }
+
+    /**
+     * Recompute size and aggregate of node from its children
+     * @param node non-NIL node
+     */
+    private void update(RBTreeNode<T> node)
+    {
+        node.updateSize();
+        if (aggregate_ != null)
+            node.setAgg(aggregate_.combine(aggregate_.combine(agg(node.left()), value(node)), agg(node.right())));
+    }
+
+    // aggregate of subtree; NIL is shared by trees of different aggregates, so its aggregate is not stored
+    private long agg(RBTreeNode<T> node) { return (node == NIL) ? aggregate_.identity() : node.agg(); }
+
+    /**
+     * Aggregate of all occurrences in node, combining value of item count times by repeated squaring
+     * @param node non-NIL node
+     * @return value of item if count is 1
      */
-    private void modify_Insert(RBTreeNode<T> node)
+    private long value(RBTreeNode<T> node)
     {
-        RBTreeNode<T> grandParent = node.parent().parent();
-        boolean isLeft = (node.parent() == grandParent.left());         // whether node's parent is left_ of grandParent
-        RBTreeNode<T> uncle = grandParent.child(!isLeft);
-        if (uncle.red())    // case 1: s is red
+        long value = aggregate_.value(node.item());
+        if (node.count() == 1) return value;
+        long result = aggregate_.identity();
+        for (int c = node.count() ; c != 0 ; c >>>= 1)
         {
-            node.parent().setRed(false);
-            uncle.setRed(false);
-            if (grandParent == root()) return;                          // no more recursion is necessary for root
-            grandParent.setRed(true);
-            if (grandParent.parent().red()) modify_Insert(grandParent); // deal with grandParent's problem if exists
+            if ((c & 1) != 0) result = aggregate_.combine(result, value);
+            value = aggregate_.combine(value, value);
         }
-        else                // case 2: s is black
+        return result;
+    }
+
+    /**
+     * Modify tree to maintain red-black property; called only if there is double-red problem
+     * @param node (child) node where double-red problem has occurred
+     * @return true iff black height of tree has increased, which happens when case 1 reaches root
+     */
+    private boolean modify_Insert(RBTreeNode<T> node)
+    {
+        while (true)
         {
-            if (node == node.parent().child(!isLeft)) rotate(node.parent(), isLeft);    // case 2-1 to 2-2
-            rotate(grandParent, !isLeft);                                               // case 2-2: x is left child of p
+            RBTreeNode<T> grandParent = node.parent().parent();
+            boolean isLeft = (node.parent() == grandParent.left());     // whether node's parent is left_ of grandParent
+            RBTreeNode<T> uncle = grandParent.child(!isLeft);
+            if (uncle.red())    // case 1: s is red
+            {
+                if (metrics_ != null)
+                {
+                    metrics_.insertFixups_[OS_RBTreeMetrics.INSERT_1]++;
+                    metrics_.recolorings_ += grandParent.isRoot() ? 2 : 3;
+                }
+                node.parent().setRed(false);
+                uncle.setRed(false);
+                if (grandParent.isRoot()) return true;                  // no more iteration is necessary for root
+                grandParent.setRed(true);
+                if (!grandParent.parent().red()) return false;
+                node = grandParent;                                     // deal with grandParent's problem
+            }
+            else                // case 2: s is black
+            {
+                if (metrics_ != null) metrics_.insertFixups_[(node == node.parent().child(!isLeft)) ? OS_RBTreeMetrics.INSERT_2_1
+                                                                                                     : OS_RBTreeMetrics.INSERT_2_2]++;
+                if (node == node.parent().child(!isLeft)) rotate(node.parent(), isLeft);    // case 2-1 to 2-2
+                rotate(grandParent, !isLeft);                                               // case 2-2: x is left child of p
+                return false;
+            }
         }
     }
 
     /**
      * Modify tree to maintain red-black property; called only if there is lacking-black problem
-     * @param node (child) node where lacking-black problem has occurred
+     * @param parent parent of (child) node where lacking-black problem has occurred; node may be NIL
+     * @param isLeft whether the node is left_ of parent
      */
-    private void modify_Delete(RBTreeNode<T> node, boolean isLeft)
+    @SuppressWarnings("fallthrough")    // case *-3 falls into case *-2
+    private void modify_Delete(RBTreeNode<T> parent, boolean isLeft)
     {
-        RBTreeNode<T> parent = node.parent();
-        RBTreeNode<T> sibling = parent.child(!isLeft);
-        RBTreeNode<T> leftCousin = sibling.child(isLeft);
-        RBTreeNode<T> rightCousin = sibling.child(!isLeft);
-        int type = (leftCousin.red() ? 0 : 1) + (rightCousin.red() ? 0 : 2);
-        if (!parent.red() && type == 3)
+        RBTreeNode<T> sibling, leftCousin, rightCousin;
+        int type;
+        while (true)
         {
+            sibling = parent.child(!isLeft);
+            leftCousin = sibling.child(isLeft);
+            rightCousin = sibling.child(!isLeft);
+            type = (leftCousin.red() ? 0 : 1) + (rightCousin.red() ? 0 : 2);
+            if (parent.red() || type != 3) break;
+
             if (sibling.red())      // case 2-4 to 1-*
             {
-                rotate(node.parent(), isLeft);
+                if (metrics_ != null) metrics_.deleteFixups_[OS_RBTreeMetrics.DELETE_2_4]++;
+                rotate(parent, isLeft);
                 parent = sibling;
                 sibling = leftCousin;
                 leftCousin = sibling.child(isLeft);
                 rightCousin = sibling.child(!isLeft);
                 type = (leftCousin.red() ? 0 : 1) + (rightCousin.red() ? 0 : 2);
+                break;
             }
-            else                    // case 2-1
+            // case 2-1
+            if (metrics_ != null)
             {
-                sibling.setRed(true);
-                if (parent != NIL) modify_Delete(parent, parent == parent.parent().left()); // deal with parent's problem
-                return;
+                metrics_.deleteFixups_[OS_RBTreeMetrics.DELETE_2_1]++;
+                metrics_.recolorings_++;
             }
+            sibling.setRed(true);
+            if (parent.isRoot()) return;            // root needs no more modification
+            isLeft = (parent == parent.parent().left());
+            parent = parent.parent();               // deal with parent's problem
         }
         switch (type)
         {
             case 2:                 // case *-3 to *-2
+                if (metrics_ != null) metrics_.deleteFixups_[OS_RBTreeMetrics.DELETE_3]++;
                 rotate(sibling, !isLeft);
                 rightCousin = sibling.child(!isLeft);
             case 0:
             case 1:                 // case *-2
+                if (metrics_ != null)
+                {
+                    metrics_.deleteFixups_[OS_RBTreeMetrics.DELETE_2]++;
+                    metrics_.recolorings_++;
+                }
                 rightCousin.setRed(false);
                 rotate(parent, isLeft);
                 break;
             case 3:                 // case 1-1
+                if (metrics_ != null)
+                {
+                    metrics_.deleteFixups_[OS_RBTreeMetrics.DELETE_1_1]++;
+                    metrics_.recolorings_ += 2;
+                }
                 parent.setRed(false);
                 sibling.setRed(true);
                 break;
@@ -232,22 +1925,30 @@ public class OS_RBTree<T extends Comparable<T>>
     private void rotate(RBTreeNode<T> node, boolean isLeft)
     {
         RBTreeNode<T> child = node.child(!isLeft);  // child node to be rotated
+        if (metrics_ != null) metrics_.rotations_++;
 
-        // swap child's item and node's item
+        // swap child's item and node's item, with their counts
         T item = node.item();
         node.setItem(child.item());
         child.setItem(item);
+        int count = node.count();
+        node.setCount(child.count());
+        child.setCount(count);
+        if (finger_ == node) finger_ = child;       // finger_ and max_ follow their items
+        else if (finger_ == child) finger_ = node;
+        if (max_ == node) max_ = child;
+        else if (max_ == child) max_ = node;
 
         // modify pointers
         node.setChild(child.child(!isLeft), !isLeft);
-        node.child(!isLeft).setParent(node);
+        if (node.child(!isLeft) != NIL) node.child(!isLeft).setParent(node);    // NIL is never modified
         child.setChild(child.child(isLeft), !isLeft);
         child.setChild(node.child(isLeft), isLeft);
-        child.child(isLeft).setParent(child);
+        if (child.child(isLeft) != NIL) child.child(isLeft).setParent(child);
         node.setChild(child, isLeft);
 
-        // adjust size
-        child.updateSize();
+        // adjust size; node keeps the same items, so its size and aggregate do not change
+        update(child);
     }
 
     /* rotate method is equivalent to below methods (provided for better understanding)
@@ -295,18 +1996,40 @@ public class OS_RBTree<T extends Comparable<T>>
      */
     private String printNode(RBTreeNode<T> node)
     {
-        return String.format("(%s %s,%s,%s)", node.red() ? "R" : "B", node.item().toString(),
-                             node.left() == NIL ? "NIL" : printNode(node.left()),
-                             node.right() == NIL ? "NIL" : printNode(node.right()));
+        StringBuilder sb = new StringBuilder();
+        printNode(node, sb);
+        return sb.toString();
+    }
+
+    // append string displaying node to sb; recursion depth is at most the height of tree
+    private void printNode(RBTreeNode<T> node, StringBuilder sb)
+    {
+        if (node == NIL)
+        {
+            sb.append("NIL");
+            return;
+        }
+        sb.append('(').append(node.red() ? 'R' : 'B').append(' ').append(node.item()).append(',');
+        printNode(node.left(), sb);
+        sb.append(',');
+        printNode(node.right(), sb);
+        sb.append(')');
     }
 
     /**
-     * Clear tree;
+     * Clear tree; if nodes are recycled, this takes O(1) and nodes (with their items) are kept until reused
      */
+    @Override
     public void clear()
     {
-        NIL.setLeft(NIL);
+        if (recycle_ && root() != NIL)  // whole tree is freed at once, and reclaimed node by node
+        {
+            root().setParent(free_);
+            free_ = root();
+        }
+        head_.setLeft(NIL);
         treeSize_ = 0;
+        modCount_++;
     }
 
     // debug purpose
@@ -328,7 +2051,7 @@ public class OS_RBTree<T extends Comparable<T>>
         int rightHeight = blackHeight(node.right());
         if (leftHeight == -1 || rightHeight == -1 ||
             leftHeight != rightHeight ||                                    // red-black property
-            node.size() != node.left().size() + node.right().size() + 1)    // order statistics
+            node.size() != node.left().size() + node.right().size() + node.count()) // order statistics
         {
             System.out.println(printNode(node));
             return -1;
@@ -343,10 +2066,22 @@ public class OS_RBTree<T extends Comparable<T>>
  */
 class RBTreeNode<T>
 {
+    private static final RBTreeNode<Object> NIL = new RBTreeNode<>(false, null, null, null, null);
+    static
+    {
+        NIL.setParent(NIL);
+        NIL.setLeft(NIL);
+        NIL.setRight(NIL);
+        NIL.minusSize();    // to make size 0
+        NIL.setCount(0);
+    }
+
     private boolean red_;   // true for red, false for black
     private T item_;
     private RBTreeNode<T> parent_, left_, right_;
     private int size_ = 1;  // size of 'new' node is 1
+    private int count_ = 1; // occurrences of item, more than 1 only in multiset mode
+    private long agg_;      // aggregate of subtree, used only if tree keeps aggregate
 
     // Constructors
     RBTreeNode(boolean red, T item, RBTreeNode<T> parent, RBTreeNode<T> left, RBTreeNode<T> right)
@@ -358,6 +2093,27 @@ class RBTreeNode<T>
         this.right_ = right;
     }
 
+    /**
+     * Reinitialize node as if it is newly constructed, to reuse it
+     */
+    void reset(boolean red, T item, RBTreeNode<T> parent, RBTreeNode<T> left, RBTreeNode<T> right)
+    {
+        this.red_ = red;
+        this.item_ = item;
+        this.parent_ = parent;
+        this.left_ = left;
+        this.right_ = right;
+        this.size_ = 1;
+        this.count_ = 1;
+    }
+
+    /**
+     * Return NIL, the black leaf of size 0 shared by all trees; it must never be modified
+     * @return NIL
+     */
+    @SuppressWarnings("unchecked")
+    static <T> RBTreeNode<T> nil() { return (RBTreeNode<T>) (RBTreeNode<?>) NIL; }
+
     // Accessors
     boolean red()                        { return this.red_;      }
     T item()                             { return this.item_;     }
@@ -365,6 +2121,8 @@ class RBTreeNode<T>
     RBTreeNode<T> left()                 { return this.left_;     }
     RBTreeNode<T> right()                { return this.right_;    }
     int size()                           { return this.size_;     }
+    int count()                          { return this.count_;    }
+    long agg()                           { return this.agg_;      }
 
     // Mutators
     void setRed(boolean red)             { this.red_ = red;       }
@@ -372,12 +2130,15 @@ class RBTreeNode<T>
     void setParent(RBTreeNode<T> parent) { this.parent_ = parent; }
     void setLeft(RBTreeNode<T> left)     { this.left_ = left;     }
     void setRight(RBTreeNode<T> right)   { this.right_ = right;   }
+    void setAgg(long agg)                { this.agg_ = agg;       }
+    void setCount(int count)             { this.count_ = count;   }
 
     void plusSize()      { this.size_++; }
     void minusSize()     { this.size_--; }
-    void updateSize()    { this.size_ = left_.size_ + right_.size_ + 1; }
+    void updateSize()    { this.size_ = left_.size_ + right_.size_ + count_; }
 
     // for convenience
+    boolean isRoot()                                     { return parent_.size_ == 0; } // parent of root is head or NIL
     RBTreeNode<T> child(boolean isLeft)                  { return (isLeft) ? this.left_ : this.right_;     }
     void setChild(RBTreeNode<T> node, boolean isLeft)    { if (isLeft) setLeft(node); else setRight(node); }
 }
\ No newline at end of file
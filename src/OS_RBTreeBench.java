@@ -0,0 +1,1080 @@
+import java.io.*;
+import java.lang.management.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.Supplier;
+
+/**
+ * Benchmark for OS_RBTree. Measures throughput and allocation of Insert, Delete, Select, and Rank. <br>
+ * <br>
+ * Tree sizes and key distributions are given as arguments; every (size, distribution) pair is run
+ * WARMUP times before MEASURE timed runs, and the best and mean ops/sec are reported. <br>
+ * Allocation is measured per thread, so bytes/op excludes other threads (like JMH's gc.alloc.rate.norm). <br>
+ * <br>
+ * Usage: <br>
+ *      java OS_RBTreeBench [sizes] [distributions] [trees]     e.g. java OS_RBTreeBench 1000,1000000 random,zipf boxed,int <br>
+ *      java OS_RBTreeBench trace [filename]            replay I/D/S/R commands in the format of OS_RBTreeTest <br>
+ *      java OS_RBTreeBench concurrent [size] [threads] read throughput of ConcurrentOS_RBTree by number of readers <br>
+ *      java OS_RBTreeBench durable [size]              insert throughput of DurableOS_RBTree by operations per sync <br>
+ *      java OS_RBTreeBench window [size]               ingestion and queries of SlidingWindowQuantile of given count window <br>
+ *      java OS_RBTreeBench server [size]               throughput of OS_RBTreeServer by requests in flight on one connection <br>
+ * <br>
+ * Distributions: random, ascending, descending, zipf, mixed (40% I, 20% D, 20% S, 20% R) <br>
+ * Trees: boxed (OS_RBTree&lt;Integer&gt;, default), int (IntOS_RBTree), persistent (PersistentOS_RBTree&lt;Integer&gt;),
+ *        btree (OS_BTree&lt;Integer&gt;), mapped (MappedLongOS_RBTree on a temporary file) <br>
+ * <br>
+ * Run with a fixed heap (e.g. -Xms4g -Xmx4g) so that GC counts are comparable between runs.
+ */
+public class OS_RBTreeBench
+{
+    public static final int WARMUP = 3;
+    public static final int MEASURE = 5;
+    public static final long SEED = 20170516L;
+    public static final long WARMUP_MS = 500;   // for concurrent benchmark, which runs for fixed time
+    public static final long MEASURE_MS = 2000;
+
+    private static final int[] DEFAULT_SIZES = { 1_000, 10_000, 100_000, 1_000_000, 10_000_000 };
+    private static final String[] DEFAULT_DISTRIBUTIONS = { "random", "ascending", "descending", "zipf", "mixed" };
+
+    // sink for results, so that JIT cannot eliminate benchmarked calls
+    public static long blackhole;
+
+    // phase of concurrent benchmark, read by its threads between batches of operations
+    private static final int WARM = 0, MEASURING = 1, STOP = 2;
+    private static volatile int phase;
+
+    public static void main(String[] args) throws IOException, InterruptedException
+    {
+        if (args.length >= 1 && args[0].equals("concurrent"))
+        {
+            int n = (args.length >= 2) ? Integer.parseInt(args[1]) : 1_000_000;
+            int threads = (args.length >= 3) ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+            runConcurrent(n, threads);
+            return;
+        }
+        if (args.length >= 1 && args[0].equals("durable"))
+        {
+            runDurable((args.length >= 2) ? Integer.parseInt(args[1]) : 100_000);
+            return;
+        }
+        if (args.length >= 1 && args[0].equals("server"))
+        {
+            runServer((args.length >= 2) ? Integer.parseInt(args[1]) : 100_000);
+            return;
+        }
+        if (args.length >= 1 && args[0].equals("window"))
+        {
+            System.out.printf("%-10s %-10s %10s %14s %14s %10s %8s %8s\n",
+                              "workload", "operation", "size", "best ops/s", "mean ops/s", "B/op", "GCs", "GC ms");
+            runWindow((args.length >= 2) ? Integer.parseInt(args[1]) : 100_000);
+            System.out.printf("(blackhole: %d)\n", blackhole);
+            return;
+        }
+        if (args.length >= 1 && args[0].equals("trace"))
+        {
+            if (args.length != 2)
+            {
+                System.out.println("The command should follow this format: java OS_RBTreeBench trace <String>filename.");
+                System.exit(1);
+            }
+            Workload workload = Workload.fromTrace(args[1]);
+            System.out.printf("%-10s %-10s %10s %14s %14s %10s %8s %8s\n",
+                              "workload", "operation", "size", "best ops/s", "mean ops/s", "B/op", "GCs", "GC ms");
+            runWorkload(args[1], workload);
+            return;
+        }
+
+        int[] sizes = DEFAULT_SIZES;
+        String[] distributions = DEFAULT_DISTRIBUTIONS;
+        List<String> trees = List.of("boxed");
+        if (args.length >= 1) sizes = Arrays.stream(args[0].split(",")).mapToInt(Integer::parseInt).toArray();
+        if (args.length >= 2) distributions = args[1].split(",");
+        if (args.length >= 3) trees = List.of(args[2].split(","));
+
+        System.out.printf("%-10s %-10s %10s %14s %14s %10s %8s %8s\n",
+                          "workload", "operation", "size", "best ops/s", "mean ops/s", "B/op", "GCs", "GC ms");
+        for (String distribution : distributions)
+        {
+            for (int n : sizes)
+            {
+                if (distribution.equals("mixed"))
+                {
+                    Workload workload = Workload.mixed(n, new Random(SEED));
+                    if (trees.contains("boxed")) runWorkload("mixed", workload);
+                    if (trees.contains("int")) runIntWorkload("mixed/int", workload);
+                }
+                else
+                {
+                    Integer[] keys = keys(distribution, n, new Random(SEED));
+                    if (trees.contains("boxed")) runDistribution(distribution, n, keys);
+                    if (trees.contains("int")) runIntDistribution(distribution + "/int", n, keys);
+                    if (trees.contains("persistent")) runPersistentDistribution(distribution + "/p", n, keys);
+                    if (trees.contains("btree")) runSetDistribution(distribution + "/b", n, keys, OS_BTree::new);
+                    if (trees.contains("mapped")) runMappedDistribution(distribution + "/m", n, keys);
+                }
+            }
+        }
+        System.out.printf("(blackhole: %d)\n", blackhole);
+    }
+
+    /**
+     * Run Insert, Select, Rank, and Delete of given keys; Select and Rank are measured on the full tree
+     * @param name name of distribution
+     * @param n number of keys
+     * @param keys keys to insert, in insertion order
+     */
+    private static void runDistribution(String name, int n, Integer[] keys)
+    {
+        Random random = new Random(SEED);
+        Integer[] deleteOrder = keys.clone();
+        shuffle(deleteOrder, random);
+        Integer[] rankKeys = new Integer[n];
+        for (int i = 0 ; i < n ; i++) rankKeys[i] = keys[random.nextInt(n)];
+
+        // tree which Select and Rank are measured on
+        OS_RBTree<Integer> full = build(keys);
+        int[] ranks = new int[n];
+        for (int i = 0 ; i < n ; i++) ranks[i] = 1 + random.nextInt(full.treeSize());
+
+        measure(name, "insert", n, () ->
+        {
+            OS_RBTree<Integer> tree = new OS_RBTree<>();
+            for (Integer key : keys) tree.insert(key);
+            blackhole += tree.treeSize();
+        });
+        measure(name, "insertF", n, () ->      // finger search; appends of ascending keys take one comparison
+        {
+            OS_RBTree<Integer> tree = new OS_RBTree<>();
+            tree.setFingerSearch(true);
+            for (Integer key : keys) tree.insert(key);
+            blackhole += tree.treeSize();
+        });
+        measure(name, "insertM", n, () ->      // metrics on; cost of counters and two nanoTime calls
+        {
+            OS_RBTree<Integer> tree = new OS_RBTree<>();
+            tree.enableMetrics();
+            for (Integer key : keys) tree.insert(key);
+            blackhole += tree.treeSize() + tree.metrics().getRotations();
+        });
+        Integer[] sorted = new Integer[full.treeSize()];
+        for (int i = 0 ; i < sorted.length ; i++) sorted[i] = full.select(i + 1);
+        measure(name, "fromSorted", sorted.length, () -> blackhole += OS_RBTree.fromSorted(sorted).treeSize());
+
+        // save and load snapshot in memory, to compare with fromSorted and insert
+        ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+        measure(name, "snapWrite", full.treeSize(), snapshot::reset, () ->
+        {
+            try
+            {
+                full.writeSnapshot(snapshot, SnapshotCodec.ints());
+            }
+            catch (IOException e)
+            {
+                throw new UncheckedIOException(e);
+            }
+            blackhole += snapshot.size();
+        });
+        byte[] snapshotBytes = snapshot.toByteArray();
+        measure(name, "snapRead", full.treeSize(), () ->
+        {
+            try
+            {
+                blackhole += OS_RBTree.readSnapshot(new ByteArrayInputStream(snapshotBytes), SnapshotCodec.ints(), null).treeSize();
+            }
+            catch (IOException e)
+            {
+                throw new UncheckedIOException(e);
+            }
+        });
+        measure(name, "select", n, () ->
+        {
+            long sum = 0;
+            for (int i : ranks) sum += full.select(i);
+            blackhole += sum;
+        });
+        measure(name, "rank", n, () ->
+        {
+            long sum = 0;
+            for (Integer key : rankKeys) sum += full.rank(key);
+            blackhole += sum;
+        });
+        measure(name, "selectM", n, full::enableMetrics, () ->
+        {
+            long sum = 0;
+            for (int i : ranks) sum += full.select(i);
+            blackhole += sum;
+        });
+        full.disableMetrics();
+
+        // the same queries in sorted order, one by one and as a batch
+        int[] sortedRanks = ranks.clone();
+        Arrays.sort(sortedRanks);
+        Integer[] sortedKeys = rankKeys.clone();
+        Arrays.sort(sortedKeys);
+        Integer[] selected = new Integer[n];
+        measure(name, "selectSort", n, () ->
+        {
+            long sum = 0;
+            for (int i : sortedRanks) sum += full.select(i);
+            blackhole += sum;
+        });
+        measure(name, "selectAll", n, () -> blackhole += full.selectAll(sortedRanks, selected)[n / 2]);
+        measure(name, "rankSort", n, () ->
+        {
+            long sum = 0;
+            for (Integer key : sortedKeys) sum += full.rank(key);
+            blackhole += sum;
+        });
+        measure(name, "rankAll", n, () -> blackhole += full.rankAll(sortedKeys)[n / 2]);
+        measure(name, "iterate", full.treeSize(), () ->
+        {
+            long sum = 0;
+            for (Integer key : full) sum += key;
+            blackhole += sum;
+        });
+
+        // select and rank at positions near the previous one (random walk), from root and from finger
+        int[] nearRanks = new int[n];
+        Integer[] nearKeys = new Integer[n];
+        for (int i = 0, r = 1 + full.treeSize() / 2 ; i < n ; i++)
+        {
+            r = Math.max(1, Math.min(full.treeSize(), r + random.nextInt(33) - 16));
+            nearRanks[i] = r;
+            nearKeys[i] = sorted[r - 1];
+        }
+        for (boolean finger : new boolean[] { false, true })
+        {
+            measure(name, finger ? "nearF" : "near", 2 * n, () -> full.setFingerSearch(finger), () ->
+            {
+                long sum = 0;
+                for (int i = 0 ; i < n ; i++) sum += full.select(nearRanks[i]) + full.rank(nearKeys[i]);
+                blackhole += sum;
+            });
+        }
+        full.setFingerSearch(false);
+
+        // merge sorted batch of n/10 new keys into tree of even keys, one by one and by insertAll
+        Integer[] evens = Arrays.stream(sorted).map(x -> 2 * x).toArray(Integer[]::new);
+        Integer[] batch = Arrays.stream(keys("random", n, random)).limit(Math.max(1, n / 10))
+                                .sorted().map(x -> 2 * x - 1).toArray(Integer[]::new);
+        List<OS_RBTree<Integer>> merged = new ArrayList<>();
+        measure(name, "batchLoop", batch.length, () ->
+        {
+            merged.clear();
+            merged.add(OS_RBTree.fromSorted(evens));
+        }, () ->
+        {
+            OS_RBTree<Integer> tree = merged.get(0);
+            for (Integer key : batch) tree.insert(key);
+            blackhole += tree.treeSize();
+        });
+        measure(name, "insertAll", batch.length, () ->
+        {
+            merged.clear();
+            merged.add(OS_RBTree.fromSorted(evens));
+        }, () ->
+        {
+            OS_RBTree<Integer> tree = merged.get(0);
+            tree.insertAll(batch);
+            blackhole += tree.treeSize();
+        });
+
+        // each run of delete needs its own full tree; building it is not measured
+        List<OS_RBTree<Integer>> trees = new ArrayList<>();
+        measure(name, "delete", n, () ->
+        {
+            trees.clear();
+            trees.add(build(keys));
+        }, () ->
+        {
+            OS_RBTree<Integer> tree = trees.get(0);
+            for (Integer key : deleteOrder) tree.delete(key);
+            blackhole += tree.treeSize();
+        });
+
+        // delete and reinsert each key at stable size; with recycling, churn should allocate no nodes
+        for (boolean recycle : new boolean[] { false, true })
+        {
+            measure(name, recycle ? "churnPool" : "churn", 2 * n, () ->
+            {
+                trees.clear();
+                trees.add(build(keys));
+                trees.get(0).setNodeRecycling(recycle);
+            }, () ->
+            {
+                OS_RBTree<Integer> tree = trees.get(0);
+                for (Integer key : deleteOrder)
+                {
+                    tree.delete(key);
+                    tree.insert(key);
+                }
+                blackhole += tree.treeSize();
+            });
+        }
+    }
+
+    /**
+     * Same as runDistribution, on IntOS_RBTree
+     * @param name name of distribution
+     * @param n number of keys
+     * @param boxedKeys keys to insert, in insertion order
+     */
+    private static void runIntDistribution(String name, int n, Integer[] boxedKeys)
+    {
+        Random random = new Random(SEED);
+        int[] keys = Arrays.stream(boxedKeys).mapToInt(Integer::intValue).toArray();
+        int[] deleteOrder = Arrays.stream(boxedKeys.clone()).mapToInt(Integer::intValue).toArray();
+        shuffle(deleteOrder, random);
+        int[] rankKeys = new int[n];
+        for (int i = 0 ; i < n ; i++) rankKeys[i] = keys[random.nextInt(n)];
+
+        IntOS_RBTree full = buildInt(keys);
+        int[] ranks = new int[n];
+        for (int i = 0 ; i < n ; i++) ranks[i] = 1 + random.nextInt(full.treeSize());
+
+        measure(name, "insert", n, () ->
+        {
+            IntOS_RBTree tree = new IntOS_RBTree();
+            for (int key : keys) tree.insert(key);
+            blackhole += tree.treeSize();
+        });
+        measure(name, "select", n, () ->
+        {
+            long sum = 0;
+            for (int i : ranks) sum += full.select(i);
+            blackhole += sum;
+        });
+        measure(name, "rank", n, () ->
+        {
+            long sum = 0;
+            for (int key : rankKeys) sum += full.rank(key);
+            blackhole += sum;
+        });
+
+        List<IntOS_RBTree> trees = new ArrayList<>();
+        measure(name, "delete", n, () ->
+        {
+            trees.clear();
+            trees.add(buildInt(keys));
+        }, () ->
+        {
+            IntOS_RBTree tree = trees.get(0);
+            for (int key : deleteOrder) tree.delete(key);
+            blackhole += tree.treeSize();
+        });
+    }
+
+    /**
+     * Same as runIntDistribution, on MappedLongOS_RBTree; the file is deleted afterward
+     * @param name name of distribution
+     * @param n number of keys
+     * @param boxedKeys keys to insert, in insertion order
+     */
+    private static void runMappedDistribution(String name, int n, Integer[] boxedKeys) throws IOException
+    {
+        Random random = new Random(SEED);
+        long[] keys = Arrays.stream(boxedKeys).mapToLong(Integer::longValue).toArray();
+        long[] deleteOrder = keys.clone();
+        for (int i = deleteOrder.length - 1 ; i > 0 ; i--)  // shuffle
+        {
+            int j = random.nextInt(i + 1);
+            long tmp = deleteOrder[i];
+            deleteOrder[i] = deleteOrder[j];
+            deleteOrder[j] = tmp;
+        }
+        long[] rankKeys = new long[n];
+        for (int i = 0 ; i < n ; i++) rankKeys[i] = keys[random.nextInt(n)];
+
+        Path file = Files.createTempFile("OS_RBTreeBench", ".map");
+        Files.delete(file);  // to be created as a tree file
+        try (MappedLongOS_RBTree tree = MappedLongOS_RBTree.open(file))
+        {
+            int[] ranks = new int[n];
+            measure(name, "insert", n, tree::clear, () ->
+            {
+                for (long key : keys) tree.insert(key);
+                blackhole += tree.treeSize();
+            });
+            for (int i = 0 ; i < n ; i++) ranks[i] = 1 + random.nextInt(tree.treeSize());
+            measure(name, "select", n, () ->
+            {
+                long sum = 0;
+                for (int i : ranks) sum += tree.select(i);
+                blackhole += sum;
+            });
+            measure(name, "rank", n, () ->
+            {
+                long sum = 0;
+                for (long key : rankKeys) sum += tree.rank(key);
+                blackhole += sum;
+            });
+            measure(name, "delete", n, () ->
+            {
+                tree.clear();
+                for (long key : keys) tree.insert(key);
+            }, () ->
+            {
+                for (long key : deleteOrder) tree.delete(key);
+                blackhole += tree.treeSize();
+            });
+        }
+        finally
+        {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    /**
+     * Run Insert, Select, Rank, and Delete on any OrderStatisticSet, to compare it with rows of runDistribution
+     * @param name name of distribution
+     * @param n number of keys
+     * @param keys keys to insert, in insertion order
+     * @param empty supplier of empty set
+     */
+    private static void runSetDistribution(String name, int n, Integer[] keys, Supplier<OrderStatisticSet<Integer>> empty)
+    {
+        Random random = new Random(SEED);
+        Integer[] deleteOrder = keys.clone();
+        shuffle(deleteOrder, random);
+        Integer[] rankKeys = new Integer[n];
+        for (int i = 0 ; i < n ; i++) rankKeys[i] = keys[random.nextInt(n)];
+
+        OrderStatisticSet<Integer> full = empty.get();
+        for (Integer key : keys) full.insert(key);
+        int[] ranks = new int[n];
+        for (int i = 0 ; i < n ; i++) ranks[i] = 1 + random.nextInt(full.treeSize());
+
+        measure(name, "insert", n, () ->
+        {
+            OrderStatisticSet<Integer> set = empty.get();
+            for (Integer key : keys) set.insert(key);
+            blackhole += set.treeSize();
+        });
+        measure(name, "select", n, () ->
+        {
+            long sum = 0;
+            for (int i : ranks) sum += full.select(i);
+            blackhole += sum;
+        });
+        measure(name, "rank", n, () ->
+        {
+            long sum = 0;
+            for (Integer key : rankKeys) sum += full.rank(key);
+            blackhole += sum;
+        });
+
+        List<OrderStatisticSet<Integer>> sets = new ArrayList<>();
+        measure(name, "delete", n, () ->
+        {
+            sets.clear();
+            OrderStatisticSet<Integer> set = empty.get();
+            for (Integer key : keys) set.insert(key);
+            sets.add(set);
+        }, () ->
+        {
+            OrderStatisticSet<Integer> set = sets.get(0);
+            for (Integer key : deleteOrder) set.delete(key);
+            blackhole += set.treeSize();
+        });
+    }
+
+    /**
+     * Same as runDistribution, on PersistentOS_RBTree; every operation makes a new version
+     * @param name name of distribution
+     * @param n number of keys
+     * @param keys keys to insert, in insertion order
+     */
+    private static void runPersistentDistribution(String name, int n, Integer[] keys)
+    {
+        Random random = new Random(SEED);
+        Integer[] deleteOrder = keys.clone();
+        shuffle(deleteOrder, random);
+        Integer[] rankKeys = new Integer[n];
+        for (int i = 0 ; i < n ; i++) rankKeys[i] = keys[random.nextInt(n)];
+
+        PersistentOS_RBTree<Integer> full = PersistentOS_RBTree.empty();
+        for (Integer key : keys) full = full.insert(key);
+        PersistentOS_RBTree<Integer> snapshot = full;
+        int[] ranks = new int[n];
+        for (int i = 0 ; i < n ; i++) ranks[i] = 1 + random.nextInt(full.treeSize());
+
+        measure(name, "insert", n, () ->
+        {
+            PersistentOS_RBTree<Integer> tree = PersistentOS_RBTree.empty();
+            for (Integer key : keys) tree = tree.insert(key);
+            blackhole += tree.treeSize();
+        });
+        measure(name, "select", n, () ->
+        {
+            long sum = 0;
+            for (int i : ranks) sum += snapshot.select(i);
+            blackhole += sum;
+        });
+        measure(name, "rank", n, () ->
+        {
+            long sum = 0;
+            for (Integer key : rankKeys) sum += snapshot.rank(key);
+            blackhole += sum;
+        });
+        measure(name, "delete", n, () ->
+        {
+            PersistentOS_RBTree<Integer> tree = snapshot;    // versions share nodes, so no setup is needed
+            for (Integer key : deleteOrder) tree = tree.delete(key);
+            blackhole += tree.treeSize();
+        });
+    }
+
+    /**
+     * Replay workload from empty tree
+     * @param name name of workload
+     * @param workload commands to replay
+     */
+    private static void runWorkload(String name, Workload workload)
+    {
+        measure(name, "replay", workload.length, () ->
+        {
+            OS_RBTree<Integer> tree = new OS_RBTree<>();
+            long sum = 0;
+            for (int i = 0 ; i < workload.length ; i++)
+            {
+                Integer x = workload.keys[i];
+                switch (workload.commands[i])
+                {
+                    case 'I': sum += OS_RBTreeTest.convert(tree.insert(x)); break;
+                    case 'D': sum += OS_RBTreeTest.convert(tree.delete(x)); break;
+                    case 'S': sum += OS_RBTreeTest.convert(tree.select(x)); break;
+                    case 'R': sum += tree.rank(x); break;
+                }
+            }
+            blackhole += sum;
+        });
+    }
+
+    /**
+     * Same as runWorkload, on IntOS_RBTree
+     * @param name name of workload
+     * @param workload commands to replay
+     */
+    private static void runIntWorkload(String name, Workload workload)
+    {
+        int[] keys = Arrays.stream(workload.keys).mapToInt(Integer::intValue).toArray();
+        measure(name, "replay", workload.length, () ->
+        {
+            IntOS_RBTree tree = new IntOS_RBTree();
+            long sum = 0;
+            for (int i = 0 ; i < workload.length ; i++)
+            {
+                int x = keys[i];
+                switch (workload.commands[i])
+                {
+                    case 'I': sum += tree.insert(x) ? x : 0; break;
+                    case 'D': sum += tree.delete(x) ? x : 0; break;
+                    case 'S': sum += x <= tree.treeSize() ? tree.select(x) : 0; break;
+                    case 'R': sum += tree.rank(x); break;
+                }
+            }
+            blackhole += sum;
+        });
+    }
+
+    /**
+     * Measure read throughput of ConcurrentOS_RBTree with 1, 2, 4, ... reader threads up to maxThreads,
+     * without and with a writer thread deleting and reinserting keys
+     * @param n number of keys
+     * @param maxThreads maximum number of reader threads
+     */
+    private static void runConcurrent(int n, int maxThreads) throws InterruptedException
+    {
+        Integer[] keys = keys("random", n, new Random(SEED));
+        ConcurrentOS_RBTree<Integer> tree = new ConcurrentOS_RBTree<>(build(keys));
+
+        System.out.printf("%-10s %10s %8s %14s %14s %14s\n",
+                          "writer", "size", "readers", "reads/s", "reads/s/thread", "writes/s");
+        for (boolean writer : new boolean[] { false, true })
+        {
+            for (int threads = 1 ; ; threads = Math.min(2 * threads, maxThreads))
+            {
+                measureConcurrent(tree, keys, threads, writer);
+                if (threads == maxThreads) break;
+            }
+        }
+        System.out.printf("(blackhole: %d)\n", blackhole);
+    }
+
+    /**
+     * Run reader threads, each calling Select, Rank, and Contains in turn, for WARMUP_MS + MEASURE_MS,
+     * and print operations counted during MEASURE_MS
+     * @param tree tree of keys
+     * @param keys keys in tree
+     * @param readers number of reader threads
+     * @param writer whether to run a writer thread, which deletes and reinserts keys
+     */
+    private static void measureConcurrent(ConcurrentOS_RBTree<Integer> tree, Integer[] keys, int readers, boolean writer)
+        throws InterruptedException
+    {
+        final int BATCH = 63;                   // operations between checks of phase; multiple of 3
+        long[] reads = new long[readers];       // written by each thread once, at the end
+        long[] writes = new long[1];
+        phase = WARM;
+
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0 ; t < readers ; t++)
+        {
+            int id = t;
+            threads.add(new Thread(() ->
+            {
+                Random random = new Random(SEED + id);
+                long ops = 0, sum = 0;
+                int current;
+                while ((current = phase) != STOP)
+                {
+                    for (int i = 0 ; i < BATCH ; i += 3)
+                    {
+                        Integer key = keys[random.nextInt(keys.length)];
+                        sum += tree.rank(key);
+                        if (tree.contains(key)) sum++;
+                        Integer item = tree.select(1 + random.nextInt(keys.length));
+                        if (item != null) sum += item;
+                    }
+                    if (current == MEASURING) ops += BATCH;
+                }
+                reads[id] = ops;
+                synchronized (OS_RBTreeBench.class) { blackhole += sum; }
+            }));
+        }
+        if (writer)
+        {
+            threads.add(new Thread(() ->
+            {
+                Random random = new Random(SEED - 1);
+                long ops = 0;
+                int current;
+                while ((current = phase) != STOP)
+                {
+                    Integer key = keys[random.nextInt(keys.length)];
+                    tree.delete(key);
+                    tree.insert(key);
+                    if (current == MEASURING) ops += 2;
+                }
+                writes[0] = ops;
+            }));
+        }
+
+        for (Thread thread : threads) thread.start();
+        Thread.sleep(WARMUP_MS);
+        phase = MEASURING;
+        long start = System.nanoTime();
+        Thread.sleep(MEASURE_MS);
+        phase = STOP;
+        long elapsed = System.nanoTime() - start;
+        for (Thread thread : threads) thread.join();
+
+        long total = Arrays.stream(reads).sum();
+        System.out.printf("%-10s %10d %8d %14.0f %14.0f %14.0f\n", writer ? "churn" : "none", keys.length, readers,
+                          total * 1e9 / elapsed, total * 1e9 / elapsed / readers, writes[0] * 1e9 / elapsed);
+    }
+
+    /**
+     * Stream 10 * window latency-like values (log-normal) through SlidingWindowQuantile of count window,
+     * one by one and in batches, then query quantiles and percentiles of the full window
+     * @param window size of count window
+     */
+    private static void runWindow(int window)
+    {
+        final int BATCH = 256;
+        Random random = new Random(SEED);
+        int n = 10 * window;
+        long[] times = new long[n], values = new long[n];
+        for (int i = 0 ; i < n ; i++)
+        {
+            times[i] = i;
+            values[i] = (long) (1000 * Math.exp(random.nextGaussian()));
+        }
+        double[] qs = { 0.5, 0.9, 0.99, 0.999 };
+        long[] out = new long[qs.length];
+        String name = "window";
+
+        SlidingWindowQuantile[] windows = new SlidingWindowQuantile[1];
+        measure(name, "add", n, () -> windows[0] = SlidingWindowQuantile.ofCount(window), () ->
+        {
+            SlidingWindowQuantile w = windows[0];
+            for (int i = 0 ; i < n ; i++) w.add(times[i], values[i]);
+            blackhole += w.size();
+        });
+        measure(name, "addAll", n, () -> windows[0] = SlidingWindowQuantile.ofCount(window), () ->
+        {
+            SlidingWindowQuantile w = windows[0];
+            for (int i = 0 ; i < n ; i += BATCH) w.addAll(times, values, i, Math.min(i + BATCH, n));
+            blackhole += w.size();
+        });
+        // steady state: window is full, and every add evicts the oldest value
+        measure(name, "addFull", n, () ->
+        {
+            SlidingWindowQuantile w = windows[0] = SlidingWindowQuantile.ofCount(window);
+            for (int i = 0 ; i < n ; i++) w.add(times[i], values[i]);
+        }, () ->
+        {
+            SlidingWindowQuantile w = windows[0];
+            for (int i = 0 ; i < n ; i++) w.add(n + times[i], values[i]);
+            blackhole += w.size();
+        });
+
+        SlidingWindowQuantile full = windows[0];
+        measure(name, "quantiles", n, () ->
+        {
+            long sum = 0;
+            for (int i = 0 ; i < n ; i += qs.length)
+            {
+                full.quantiles(qs, out);
+                for (long x : out) sum += x;
+            }
+            blackhole += sum;
+        });
+        measure(name, "percentile", n, () ->
+        {
+            double sum = 0;
+            for (long x : values) sum += full.percentile(x);
+            blackhole += (long) sum;
+        });
+    }
+
+    /**
+     * Insert n random keys in DurableOS_RBTree in a temporary directory, syncing every batch of operations,
+     * for batch sizes from 1 (one force per operation) up to n; then checkpoint and recover the tree
+     * @param n number of keys
+     */
+    private static void runDurable(int n) throws IOException
+    {
+        Integer[] keys = keys("random", n, new Random(SEED));
+        System.out.printf("%-10s %10s %10s %14s %14s %12s\n", "operation", "batch", "ops", "ops/sec", "syncs/sec", "log bytes");
+        for (int batch = 1 ; ; batch = Math.min(16 * batch, n))
+        {
+            Path dir = Files.createTempDirectory("OS_RBTreeBench");
+            try
+            {
+                long logBytes;
+                try (DurableOS_RBTree<Integer> tree = DurableOS_RBTree.open(dir, SnapshotCodec.ints()))
+                {
+                    long start = System.nanoTime();
+                    for (int i = 0 ; i < n ; i++)
+                    {
+                        tree.insert(keys[i]);
+                        if ((i + 1) % batch == 0) tree.sync();
+                    }
+                    tree.sync();
+                    long elapsed = System.nanoTime() - start;
+                    logBytes = Files.size(dir.resolve(DurableOS_RBTree.LOG));
+                    int syncs = (n + batch - 1) / batch;
+                    System.out.printf("%-10s %10d %10d %14.0f %14.0f %12d\n", "insert", batch, n,
+                                      n * 1e9 / elapsed, syncs * 1e9 / elapsed, logBytes);
+                }
+                if (batch == n)     // recovery from log, and from snapshot after checkpoint
+                {
+                    long start = System.nanoTime();
+                    DurableOS_RBTree<Integer> tree = DurableOS_RBTree.open(dir, SnapshotCodec.ints());
+                    long elapsed = System.nanoTime() - start;
+                    blackhole += tree.treeSize();
+                    System.out.printf("%-10s %10s %10d %14.0f %14s %12d\n", "replay", "-", n, n * 1e9 / elapsed, "-", logBytes);
+                    tree.checkpoint();
+                    tree.close();
+                    start = System.nanoTime();
+                    tree = DurableOS_RBTree.open(dir, SnapshotCodec.ints());
+                    elapsed = System.nanoTime() - start;
+                    blackhole += tree.treeSize();
+                    tree.close();
+                    System.out.printf("%-10s %10s %10d %14.0f %14s %12d\n", "snapRead", "-", n, n * 1e9 / elapsed, "-",
+                                      Files.size(dir.resolve(DurableOS_RBTree.SNAPSHOT)));
+                }
+            }
+            finally
+            {
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(dir))
+                {
+                    for (Path file : files) Files.delete(file);
+                }
+                Files.delete(dir);
+            }
+            if (batch == n) break;
+        }
+        System.out.printf("(blackhole: %d)\n", blackhole);
+    }
+
+    /**
+     * Replay mixed workload on OS_RBTreeServer through one connection, sending a pipeline of requests and
+     * reading all their responses before sending the next; depth is bounded so that responses fit in buffers
+     * @param n number of commands
+     */
+    private static void runServer(int n) throws IOException
+    {
+        Workload workload = Workload.mixed(n, new Random(SEED));
+        byte[][] requests = new byte[n][];
+        for (int i = 0 ; i < n ; i++) requests[i] = (workload.commands[i] + " " + workload.keys[i] + "\n").getBytes();
+        System.out.printf("%-10s %10s %10s %14s %14s\n", "operation", "pipeline", "ops", "ops/sec", "ops/batch");
+        for (int depth = 1 ; depth <= 1024 ; depth *= 4)
+        {
+            try (OS_RBTreeServer server = new OS_RBTreeServer(0);
+                 SocketChannel channel = SocketChannel.open())
+            {
+                server.start();
+                channel.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), server.port()));
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                ByteBuffer out = ByteBuffer.allocate(1 << 16), in = ByteBuffer.allocate(1 << 16);
+                long start = System.nanoTime();
+                for (int i = 0 ; i < n ; i += depth)
+                {
+                    int end = Math.min(i + depth, n);
+                    out.clear();
+                    for (int j = i ; j < end ; j++) out.put(requests[j]);
+                    out.flip();
+                    while (out.hasRemaining()) channel.write(out);
+                    for (int responses = end - i ; responses > 0 ; )
+                    {
+                        in.clear();
+                        if (channel.read(in) < 0) throw new EOFException();
+                        for (int k = 0 ; k < in.position() ; k++) if (in.get(k) == '\n') responses--;
+                    }
+                }
+                long elapsed = System.nanoTime() - start;
+                System.out.printf("%-10s %10d %10d %14.0f %14.1f\n", "mixed", depth, n, n * 1e9 / elapsed,
+                                  (double) server.commands() / Math.max(server.batches(), 1));
+            }
+        }
+    }
+
+    /**
+     * Run body WARMUP + MEASURE times and print the result of measured runs
+     * @param name name of workload
+     * @param operation name of operation
+     * @param ops number of operations executed by one run of body
+     * @param body benchmarked code
+     */
+    private static void measure(String name, String operation, int ops, Runnable body)
+    {
+        measure(name, operation, ops, () -> { }, body);
+    }
+
+    /**
+     * Run body WARMUP + MEASURE times, each after running setup, and print the result of measured runs
+     * @param name name of workload
+     * @param operation name of operation
+     * @param ops number of operations executed by one run of body
+     * @param setup code run before each run of body; not measured
+     * @param body benchmarked code
+     */
+    private static void measure(String name, String operation, int ops, Runnable setup, Runnable body)
+    {
+        for (int i = 0 ; i < WARMUP ; i++)
+        {
+            setup.run();
+            body.run();
+        }
+
+        double best = 0, total = 0;
+        long bytes = 0, gcCount = 0, gcTime = 0;
+        for (int i = 0 ; i < MEASURE ; i++)
+        {
+            setup.run();
+            long bytesBefore = allocatedBytes();
+            long gcCountBefore = gcCount(), gcTimeBefore = gcTime();
+            long start = System.nanoTime();
+            body.run();
+            long elapsed = System.nanoTime() - start;
+            bytes += allocatedBytes() - bytesBefore;
+            gcCount += gcCount() - gcCountBefore;
+            gcTime += gcTime() - gcTimeBefore;
+
+            double opsPerSec = ops * 1e9 / elapsed;
+            best = Math.max(best, opsPerSec);
+            total += opsPerSec;
+        }
+        System.out.printf("%-10s %-10s %10d %14.0f %14.0f %10.1f %8d %8d\n", name, operation, ops,
+                          best, total / MEASURE, (double) bytes / ((long) ops * MEASURE), gcCount, gcTime);
+    }
+
+    /**
+     * Generate keys of given distribution
+     * @param distribution one of random, ascending, descending, zipf
+     * @param n number of keys
+     * @param random source of randomness
+     * @return keys in insertion order; boxed in advance so that boxing is not measured
+     */
+    static Integer[] keys(String distribution, int n, Random random)
+    {
+        Integer[] keys = new Integer[n];
+        switch (distribution)
+        {
+            case "random":
+                for (int i = 0 ; i < n ; i++) keys[i] = i + 1;
+                shuffle(keys, random);
+                break;
+            case "ascending":
+                for (int i = 0 ; i < n ; i++) keys[i] = i + 1;
+                break;
+            case "descending":
+                for (int i = 0 ; i < n ; i++) keys[i] = n - i;
+                break;
+            case "zipf":
+                Zipf zipf = new Zipf(n, 0.99);
+                for (int i = 0 ; i < n ; i++) keys[i] = zipf.next(random);
+                break;
+            default: throw new IllegalArgumentException("Unknown distribution: " + distribution);
+        }
+        return keys;
+    }
+
+    private static OS_RBTree<Integer> build(Integer[] keys)
+    {
+        OS_RBTree<Integer> tree = new OS_RBTree<>();
+        for (Integer key : keys) tree.insert(key);
+        return tree;
+    }
+
+    private static IntOS_RBTree buildInt(int[] keys)
+    {
+        IntOS_RBTree tree = new IntOS_RBTree();
+        for (int key : keys) tree.insert(key);
+        return tree;
+    }
+
+    private static void shuffle(int[] arr, Random random)
+    {
+        for (int i = arr.length - 1 ; i > 0 ; i--)
+        {
+            int j = random.nextInt(i + 1);
+            int tmp = arr[i];
+            arr[i] = arr[j];
+            arr[j] = tmp;
+        }
+    }
+
+    private static <E> void shuffle(E[] arr, Random random)
+    {
+        for (int i = arr.length - 1 ; i > 0 ; i--)
+        {
+            int j = random.nextInt(i + 1);
+            E tmp = arr[i];
+            arr[i] = arr[j];
+            arr[j] = tmp;
+        }
+    }
+
+    // measurement helpers
+    private static long allocatedBytes()
+    {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean)
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        return 0;
+    }
+
+    private static long gcCount()
+    {
+        long count = 0;
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) count += bean.getCollectionCount();
+        return count;
+    }
+
+    private static long gcTime()
+    {
+        long time = 0;
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) time += bean.getCollectionTime();
+        return time;
+    }
+
+    /**
+     * Sequence of I/D/S/R commands, stored as parallel arrays so that replaying it does not parse
+     */
+    static class Workload
+    {
+        final char[] commands;
+        final Integer[] keys;
+        final int length;
+
+        Workload(char[] commands, Integer[] keys, int length)
+        {
+            this.commands = commands;
+            this.keys = keys;
+            this.length = length;
+        }
+
+        /**
+         * Read commands from file of the format OS_RBTreeTest reads
+         * @param filename file to read
+         * @return workload of commands in file
+         */
+        static Workload fromTrace(String filename) throws IOException
+        {
+            char[] commands = new char[1024];
+            Integer[] keys = new Integer[1024];
+            int n = 0;
+            try (OS_RBTreeReplay.TraceReader reader = new OS_RBTreeReplay.TraceReader(Paths.get(filename)))
+            {
+                while (reader.next())
+                {
+                    if (reader.key() != (int) reader.key())
+                        throw new IllegalArgumentException(String.format("Key at line %d is out of int range.", reader.line()));
+                    if (n == commands.length)
+                    {
+                        commands = Arrays.copyOf(commands, 2 * n);
+                        keys = Arrays.copyOf(keys, 2 * n);
+                    }
+                    commands[n] = (char) reader.command();
+                    keys[n++] = (int) reader.key();
+                }
+            }
+            return new Workload(commands, keys, n);
+        }
+
+        /**
+         * Generate random commands; keys are drawn from [1, 2n] so that about half of Insert and Delete succeed
+         * @param n number of commands
+         * @param random source of randomness
+         * @return workload of n commands
+         */
+        static Workload mixed(int n, Random random)
+        {
+            char[] commands = new char[n];
+            Integer[] keys = new Integer[n];
+            for (int i = 0 ; i < n ; i++)
+            {
+                int p = random.nextInt(10);
+                commands[i] = p < 4 ? 'I' : p < 6 ? 'D' : p < 8 ? 'S' : 'R';
+                keys[i] = 1 + random.nextInt(commands[i] == 'S' ? Math.max(1, i / 2) : 2 * n);
+            }
+            return new Workload(commands, keys, n);
+        }
+    }
+
+    /**
+     * Zipfian distribution over [1, n], following Gray et al., "Quickly Generating Billion-Record Synthetic Databases"
+     */
+    static class Zipf
+    {
+        private final int n;
+        private final double theta, alpha, zetan, eta;
+
+        Zipf(int n, double theta)
+        {
+            this.n = n;
+            this.theta = theta;
+            double zeta2 = 1 + Math.pow(0.5, theta);
+            double zeta = 0;
+            for (int i = 1 ; i <= n ; i++) zeta += 1 / Math.pow(i, theta);
+            this.zetan = zeta;
+            this.alpha = 1 / (1 - theta);
+            this.eta = (1 - Math.pow(2.0 / n, 1 - theta)) / (1 - zeta2 / zetan);
+        }
+
+        int next(Random random)
+        {
+            double u = random.nextDouble();
+            double uz = u * zetan;
+            if (uz < 1) return 1;
+            if (uz < 1 + Math.pow(0.5, theta)) return 2;
+            return 1 + Math.min(n - 1, (int) (n * Math.pow(eta * u - eta + 1, alpha)));
+        }
+    }
+}
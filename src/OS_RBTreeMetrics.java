@@ -0,0 +1,233 @@
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import javax.management.*;
+
+/**
+ * Metrics of OS_RBTree: rotations, recolorings and fixup cases of rebalancing, lengths of search paths,
+ * and latency histograms of Insert, Delete, Select, and Rank. <br>
+ * <br>
+ * Metrics are off by default (see OS_RBTree.enableMetrics); then each operation pays one null check.
+ * When on, counters are plain fields written by the thread using the tree, without synchronization,
+ * so that readers on other threads (e.g. JMX) may see values slightly behind, and rotations in parallel
+ * set operations may be undercounted. snapshot copies them at once for consistent reading. Hence metrics
+ * cannot be enabled on a tree wrapped by ConcurrentOS_RBTree, whose readers run concurrently. <br>
+ * <br>
+ * Latency is kept in histograms of 8 buckets per power of 2 nanoseconds, so that recording takes O(1)
+ * without allocation, and a percentile is reported as the upper bound of its bucket (at most 12.5% above).
+ */
+public class OS_RBTreeMetrics implements OS_RBTreeMetricsMXBean
+{
+    // indices of fixup cases
+    static final int INSERT_1 = 0, INSERT_2_1 = 1, INSERT_2_2 = 2;
+    static final int DELETE_2_1 = 0, DELETE_2_4 = 1, DELETE_3 = 2, DELETE_2 = 3, DELETE_1_1 = 4;
+
+    private final OS_RBTree<?> tree_;   // tree of live metrics, or null for snapshot
+    private int treeSize_, blackHeight_;// of tree when snapshot was taken
+    long rotations_ = 0;
+    long recolorings_ = 0;
+    final long[] insertFixups_ = new long[3];
+    final long[] deleteFixups_ = new long[5];
+    long searches_ = 0;
+    long pathLength_ = 0;               // sum of lengths of search paths
+    int maxPath_ = 0;
+    final Histogram insertLatency_, deleteLatency_, selectLatency_, rankLatency_;
+
+    // Constructors
+    OS_RBTreeMetrics(OS_RBTree<?> tree)
+    {
+        tree_ = tree;
+        insertLatency_ = new Histogram();
+        deleteLatency_ = new Histogram();
+        selectLatency_ = new Histogram();
+        rankLatency_ = new Histogram();
+    }
+
+    private OS_RBTreeMetrics(OS_RBTreeMetrics metrics)
+    {
+        tree_ = null;
+        treeSize_ = metrics.getTreeSize();
+        blackHeight_ = metrics.getBlackHeight();
+        rotations_ = metrics.rotations_;
+        recolorings_ = metrics.recolorings_;
+        System.arraycopy(metrics.insertFixups_, 0, insertFixups_, 0, insertFixups_.length);
+        System.arraycopy(metrics.deleteFixups_, 0, deleteFixups_, 0, deleteFixups_.length);
+        searches_ = metrics.searches_;
+        pathLength_ = metrics.pathLength_;
+        maxPath_ = metrics.maxPath_;
+        insertLatency_ = new Histogram(metrics.insertLatency_);
+        deleteLatency_ = new Histogram(metrics.deleteLatency_);
+        selectLatency_ = new Histogram(metrics.selectLatency_);
+        rankLatency_ = new Histogram(metrics.rankLatency_);
+    }
+
+    /**
+     * Copy metrics, so that they do not change with later operations
+     * @return copy of metrics, including size and black height of tree
+     */
+    public OS_RBTreeMetrics snapshot() { return new OS_RBTreeMetrics(this); }
+
+    /**
+     * Register metrics to platform MBean server as MXBean, to be read by JMX clients like jconsole
+     * @param name name of tree, which becomes the name key of ObjectName
+     * @return registered name, to unregister later
+     * @throws JMException if metrics cannot be registered, e.g. name is already registered
+     */
+    public ObjectName register(String name) throws JMException
+    {
+        ObjectName objectName = new ObjectName("OS_RBTree:type=Metrics,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        return objectName;
+    }
+
+    // Recording, called by OS_RBTree
+    void recordPath(int length)
+    {
+        searches_++;
+        pathLength_ += length;
+        if (length > maxPath_) maxPath_ = length;
+    }
+
+    // Accessors
+    @Override public long getRotations()        { return rotations_;                }
+    @Override public long getRecolorings()      { return recolorings_;              }
+    @Override public long[] getInsertFixups()   { return insertFixups_.clone();     }
+    @Override public long[] getDeleteFixups()   { return deleteFixups_.clone();     }
+    @Override public long getSearches()         { return searches_;                 }
+    @Override public int getMaxPathLength()     { return maxPath_;                  }
+    @Override public int getTreeSize()          { return (tree_ == null) ? treeSize_ : tree_.treeSize();        }
+    @Override public int getBlackHeight()       { return (tree_ == null) ? blackHeight_ : tree_.blackHeight();  }
+
+    @Override
+    public double getMeanPathLength() { return (searches_ == 0) ? 0 : (double) pathLength_ / searches_; }
+
+    @Override public LatencySummary getInsertLatency()  { return new LatencySummary(insertLatency_);   }
+    @Override public LatencySummary getDeleteLatency()  { return new LatencySummary(deleteLatency_);   }
+    @Override public LatencySummary getSelectLatency()  { return new LatencySummary(selectLatency_);   }
+    @Override public LatencySummary getRankLatency()    { return new LatencySummary(rankLatency_);     }
+
+    @Override
+    public void reset()
+    {
+        rotations_ = recolorings_ = 0;
+        Arrays.fill(insertFixups_, 0);
+        Arrays.fill(deleteFixups_, 0);
+        searches_ = pathLength_ = 0;
+        maxPath_ = 0;
+        insertLatency_.reset();
+        deleteLatency_.reset();
+        selectLatency_.reset();
+        rankLatency_.reset();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "OS_RBTreeMetrics[size=" + getTreeSize() + ", blackHeight=" + getBlackHeight() +
+               ", rotations=" + rotations_ + ", recolorings=" + recolorings_ +
+               ", insertFixups=" + Arrays.toString(insertFixups_) + ", deleteFixups=" + Arrays.toString(deleteFixups_) +
+               ", meanPath=" + String.format("%.2f", getMeanPathLength()) + ", maxPath=" + maxPath_ +
+               ", insert=" + getInsertLatency() + ", delete=" + getDeleteLatency() +
+               ", select=" + getSelectLatency() + ", rank=" + getRankLatency() + "]";
+    }
+
+    /**
+     * Summary of a latency histogram in nanoseconds; a Java bean, so that JMX shows it as composite data
+     */
+    public static final class LatencySummary
+    {
+        private final long count_, p50_, p90_, p99_, p999_, max_;
+
+        LatencySummary(Histogram histogram)
+        {
+            count_ = histogram.count();
+            p50_ = histogram.percentile(0.5);
+            p90_ = histogram.percentile(0.9);
+            p99_ = histogram.percentile(0.99);
+            p999_ = histogram.percentile(0.999);
+            max_ = histogram.max();
+        }
+
+        public long getCount()  { return count_;    }
+        public long getP50()    { return p50_;      }
+        public long getP90()    { return p90_;      }
+        public long getP99()    { return p99_;      }
+        public long getP999()   { return p999_;     }
+        public long getMax()    { return max_;      }
+
+        @Override
+        public String toString()
+        {
+            return "{count=" + count_ + ", p50=" + p50_ + ", p90=" + p90_ + ", p99=" + p99_ +
+                   ", p999=" + p999_ + ", max=" + max_ + "}";
+        }
+    }
+
+    /**
+     * Histogram of non-negative values: values below 16 have their own buckets, and each power of 2 above
+     * is divided into 8 buckets by the 3 bits below the highest one
+     */
+    static final class Histogram
+    {
+        private static final int BUCKETS = 16 + (63 - 4) * 8;
+
+        private final long[] counts_;
+        private long count_ = 0;
+        private long max_ = 0;
+
+        Histogram() { counts_ = new long[BUCKETS]; }
+
+        Histogram(Histogram histogram)
+        {
+            counts_ = histogram.counts_.clone();
+            count_ = histogram.count_;
+            max_ = histogram.max_;
+        }
+
+        long count()    { return count_;    }
+        long max()      { return max_;      }
+
+        void record(long value)
+        {
+            if (value < 0) value = 0;   // nanoTime is not monotonic on some platforms
+            counts_[bucket(value)]++;
+            count_++;
+            if (value > max_) max_ = value;
+        }
+
+        /**
+         * Get q-quantile by nearest rank
+         * @param q quantile in [0, 1]
+         * @return upper bound of bucket of q-quantile, but not above the maximum; 0 if histogram is empty
+         */
+        long percentile(double q)
+        {
+            long rank = Math.max((long) Math.ceil(q * count_), 1);
+            long seen = 0;
+            for (int b = 0 ; b < BUCKETS ; b++)
+                if ((seen += counts_[b]) >= rank) return Math.min(upperBound(b), max_);
+            return max_;
+        }
+
+        void reset()
+        {
+            Arrays.fill(counts_, 0);
+            count_ = max_ = 0;
+        }
+
+        static int bucket(long value)
+        {
+            if (value < 16) return (int) value;
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            return 16 + ((exponent - 4) << 3) + (int) ((value >>> (exponent - 3)) & 7);
+        }
+
+        // the greatest value in bucket b
+        static long upperBound(int b)
+        {
+            if (b < 16) return b;
+            int exponent = ((b - 16) >>> 3) + 4;
+            long lower = (8L + ((b - 16) & 7)) << (exponent - 3);
+            return lower + (1L << (exponent - 3)) - 1;
+        }
+    }
+}
@@ -0,0 +1,34 @@
+/**
+ * Management interface of OS_RBTreeMetrics, registered by OS_RBTreeMetrics.register. <br>
+ * <br>
+ * Fixup cases follow the case names of modify_Insert and modify_Delete of OS_RBTree: <br>
+ *      insert - 1 (red uncle, recolor), 2-1 (rotate to 2-2), 2-2 (rotate) <br>
+ *      delete - 2-1 (black sibling and cousins, recolor and move up), 2-4 (red sibling, rotate to 1-*),
+ *               *-3 (rotate to *-2), *-2 (rotate), 1-1 (red parent, recolor) <br>
+ * Height of tree is between black height and twice of it; the longest search path is a lower bound of it.
+ */
+public interface OS_RBTreeMetricsMXBean
+{
+    long getRotations();
+    long getRecolorings();              // nodes recolored by fixups
+    long[] getInsertFixups();           // counts of insert cases 1, 2-1, 2-2
+    long[] getDeleteFixups();           // counts of delete cases 2-1, 2-4, *-3, *-2, 1-1
+
+    long getSearches();                 // number of search paths recorded
+    double getMeanPathLength();         // nodes compared per search
+    int getMaxPathLength();
+
+    int getTreeSize();
+    int getBlackHeight();
+
+    // latency in nanoseconds
+    OS_RBTreeMetrics.LatencySummary getInsertLatency();
+    OS_RBTreeMetrics.LatencySummary getDeleteLatency();
+    OS_RBTreeMetrics.LatencySummary getSelectLatency();
+    OS_RBTreeMetrics.LatencySummary getRankLatency();
+
+    /**
+     * Set all counters and histograms to zero
+     */
+    void reset();
+}
@@ -0,0 +1,360 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.Arrays;
+
+/**
+ * Replay engine of I/D/S/R traces in the format of OS_RBTreeTest, for traces of millions of commands. <br>
+ * <br>
+ * Trace file is memory-mapped and parsed in place without allocation, keys may be any long (with optional '-'),
+ * and commands run on LongOS_RBTree. Latency of every command is recorded in a histogram of its type,
+ * and throughput and latency percentiles are reported at the end. <br>
+ * <br>
+ * With --check N, results are compared with a Fenwick tree over the distinct keys of trace, which mirrors every
+ * command in O(log m) instead of O(999) of OS_RBTreeCheck; every N commands, the tree is also validated by
+ * isValid, which takes O(n). Results are the same as OS_RBTreeTest: the key for successful Insert and Delete,
+ * the item for Select, the rank for Rank, and 0 otherwise. <br>
+ * <br>
+ * Usage: <br>
+ *      java OS_RBTreeReplay [--check N] filename
+ */
+public class OS_RBTreeReplay
+{
+    private static final String COMMANDS = "IDSR";
+
+    private final LongOS_RBTree tree_ = new LongOS_RBTree();
+    private final OS_RBTreeMetrics.Histogram[] latency_ = new OS_RBTreeMetrics.Histogram[COMMANDS.length()];
+    private long commands_ = 0;
+    private long nanos_ = 0;            // wall time of replay, including checker
+    private long checksum_ = 0;         // sum of results, to compare runs
+
+    // Constructor
+    private OS_RBTreeReplay()
+    {
+        for (int i = 0 ; i < latency_.length ; i++) latency_[i] = new OS_RBTreeMetrics.Histogram();
+    }
+
+    // Accessors
+    public long commands()  { return commands_; }
+    public long nanos()     { return nanos_;    }
+    public long checksum()  { return checksum_; }
+    public int treeSize()   { return tree_.treeSize(); }
+
+    public static void main(String[] args)
+    {
+        int checkEvery = 0;
+        String filename = null;
+        try
+        {
+            if (args.length == 3 && args[0].equals("--check")) checkEvery = Integer.parseInt(args[1]);
+            else if (args.length != 1) throw new IllegalArgumentException();
+            filename = args[args.length - 1];
+            if (checkEvery < 0) throw new IllegalArgumentException();
+        }
+        catch (IllegalArgumentException e)
+        {
+            System.out.println("ERROR: Input format is incorrect.");
+            System.out.println("The command should follow this format: java OS_RBTreeReplay [--check <int>N] <String>filename.");
+            System.exit(1);
+        }
+
+        try
+        {
+            OS_RBTreeReplay replay = replay(Paths.get(filename), checkEvery);
+            replay.print(System.out, filename);
+        }
+        catch (NoSuchFileException e)
+        {
+            System.out.printf("ERROR: File '%s' is not found.\n", filename);
+            System.exit(1);
+        }
+        catch (IllegalArgumentException | IllegalStateException e)
+        {
+            System.out.println("ERROR: " + e.getMessage());
+            System.exit(1);
+        }
+        catch (IOException e)
+        {
+            System.out.println("Unexpected error has occurred.");
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Replay trace on an empty tree
+     * @param trace trace file of I/D/S/R commands, one per line
+     * @param checkEvery validate tree every this many commands, checking every result; 0 not to check
+     * @return replay with its statistics
+     * @throws IllegalArgumentException if a line does not follow format
+     * @throws IllegalStateException if a result is incorrect or tree is invalid
+     */
+    public static OS_RBTreeReplay replay(Path trace, int checkEvery) throws IOException
+    {
+        OS_RBTreeReplay replay = new OS_RBTreeReplay();
+        FenwickChecker checker = (checkEvery > 0) ? new FenwickChecker(distinctKeys(trace)) : null;
+        try (TraceReader reader = new TraceReader(trace))
+        {
+            long begin = System.nanoTime();
+            while (reader.next())
+            {
+                byte command = reader.command();
+                long key = reader.key();
+                long start = System.nanoTime();
+                long result = execute(replay.tree_, command, key);
+                replay.latency_[COMMANDS.indexOf(command)].record(System.nanoTime() - start);
+                replay.checksum_ += result;
+                replay.commands_++;
+                if (checker != null)
+                {
+                    long correct = checker.execute(command, key);
+                    if (result != correct)
+                        throw new IllegalStateException(String.format("Result of command '%c %d' at line %d is incorrect: %d, expected %d.",
+                                                                      (char) command, key, reader.line(), result, correct));
+                    if (replay.commands_ % checkEvery == 0 && !replay.tree_.isValid())
+                        throw new IllegalStateException(String.format("Upon executing command '%c %d' at line %d, OS_RB property is broken.",
+                                                                      (char) command, key, reader.line()));
+                }
+            }
+            replay.nanos_ = System.nanoTime() - begin;
+        }
+        return replay;
+    }
+
+    /**
+     * Execute command on tree; shared with OS_RBTreeServer
+     * @param tree tree to execute on
+     * @param command 'I', 'D', 'S', or 'R'
+     * @param key key, or order for Select
+     * @return result of command, 0 instead of null or false
+     */
+    static long execute(LongOS_RBTree tree, byte command, long key)
+    {
+        switch (command)
+        {
+            case 'I': return tree.insert(key) ? key : 0;
+            case 'D': return tree.delete(key) ? key : 0;
+            case 'S': return (key >= 1 && key <= tree.treeSize()) ? tree.select((int) key) : 0;
+            default:  return tree.rank(key);
+        }
+    }
+
+    /**
+     * Print throughput and latency percentiles of each command type
+     * @param out stream to print
+     * @param name name of trace
+     */
+    public void print(PrintStream out, String name)
+    {
+        out.printf("trace: %s, commands: %d, time: %.1f ms, throughput: %.0f ops/s, checksum: %d, size: %d\n",
+                   name, commands_, nanos_ / 1e6, commands_ * 1e9 / Math.max(nanos_, 1), checksum_, tree_.treeSize());
+        out.printf("%-8s %12s %10s %10s %10s %10s %12s\n", "command", "count", "p50 ns", "p90 ns", "p99 ns", "p999 ns", "max ns");
+        for (int i = 0 ; i < latency_.length ; i++)
+        {
+            OS_RBTreeMetrics.LatencySummary summary = new OS_RBTreeMetrics.LatencySummary(latency_[i]);
+            out.printf("%-8c %12d %10d %10d %10d %10d %12d\n", COMMANDS.charAt(i), summary.getCount(), summary.getP50(),
+                       summary.getP90(), summary.getP99(), summary.getP999(), summary.getMax());
+        }
+    }
+
+    /**
+     * Parse a command line: a command (I, D, S, or R), a space, and a decimal long
+     * @param b buffer of line
+     * @param from index of command
+     * @param to end of line, excluding \n or \r\n
+     * @return key of line
+     * @throws NumberFormatException if line does not follow format
+     */
+    static long parseKey(ByteBuffer b, int from, int to)
+    {
+        if (to - from < 3 || COMMANDS.indexOf(b.get(from)) < 0 || b.get(from + 1) != ' ') throw new NumberFormatException();
+        int p = from + 2;
+        boolean negative = (b.get(p) == '-');
+        if (negative && ++p == to) throw new NumberFormatException();
+
+        // accumulate negatively as Long.parseLong does, so that Long.MIN_VALUE can be read
+        long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE, multiplyMin = limit / 10;
+        long result = 0;
+        for ( ; p < to ; p++)
+        {
+            int digit = b.get(p) - '0';
+            if (digit < 0 || digit > 9 || result < multiplyMin) throw new NumberFormatException();
+            result *= 10;
+            if (result < limit + digit) throw new NumberFormatException();
+            result -= digit;
+        }
+        return negative ? result : -result;
+    }
+
+    /**
+     * Collect distinct keys of Insert, Delete, and Rank in trace, for the checker
+     * @param trace trace file
+     * @return distinct keys in increasing order
+     */
+    private static long[] distinctKeys(Path trace) throws IOException
+    {
+        long[] keys = new long[1024];
+        int n = 0;
+        try (TraceReader reader = new TraceReader(trace))
+        {
+            while (reader.next())
+            {
+                if (reader.command() == 'S') continue;  // key of Select is an order
+                if (n == keys.length) keys = Arrays.copyOf(keys, 2 * n);
+                keys[n++] = reader.key();
+            }
+        }
+        Arrays.sort(keys, 0, n);
+        int m = 0;
+        for (int i = 0 ; i < n ; i++) if (m == 0 || keys[i] != keys[m - 1]) keys[m++] = keys[i];
+        return Arrays.copyOf(keys, m);
+    }
+
+    /**
+     * Reader of trace file, which maps the file in windows and parses lines without allocation. <br>
+     * A line is parsed by parseKey, and ends with \n, \r\n, or end of file.
+     */
+    static final class TraceReader implements Closeable
+    {
+        private static final long WINDOW_BYTES = 1L << 30;
+        private static final int MAX_LINE_BYTES = 64;   // longer lines are invalid; window is moved before them
+
+        private final FileChannel channel_;
+        private final long fileSize_;
+        private MappedByteBuffer window_;
+        private long windowStart_ = 0;                  // offset of window in file
+        private long line_ = 0;
+        private byte command_;
+        private long key_;
+
+        TraceReader(Path trace) throws IOException
+        {
+            channel_ = FileChannel.open(trace, StandardOpenOption.READ);
+            fileSize_ = channel_.size();
+            map(0);
+        }
+
+        // Accessors of the last line read
+        byte command()  { return command_;  }
+        long key()      { return key_;      }
+        long line()     { return line_;     }  // line number, starting from 1
+
+        /**
+         * Read next line
+         * @return true if a line is read, false at end of file
+         * @throws IllegalArgumentException if line does not follow format
+         */
+        boolean next() throws IOException
+        {
+            if (window_.remaining() < MAX_LINE_BYTES && windowStart_ + window_.limit() < fileSize_)
+                map(windowStart_ + window_.position());
+            if (!window_.hasRemaining()) return false;
+            line_++;
+
+            MappedByteBuffer b = window_;
+            int p = b.position(), end = b.limit();
+            int lineEnd = p;
+            while (lineEnd < end && b.get(lineEnd) != '\n') lineEnd++;
+            if (lineEnd == end && windowStart_ + end < fileSize_) throw invalid();     // line crossing window is too long
+            b.position((lineEnd < end) ? lineEnd + 1 : end);
+            if (lineEnd > p && b.get(lineEnd - 1) == '\r') lineEnd--;
+            try
+            {
+                key_ = parseKey(b, p, lineEnd);
+            }
+            catch (NumberFormatException e)
+            {
+                throw invalid();
+            }
+            command_ = b.get(p);
+            return true;
+        }
+
+        private IllegalArgumentException invalid()
+        {
+            return new IllegalArgumentException(String.format("Command at line %d does not follow format.", line_));
+        }
+
+        // map window of file starting at given offset
+        private void map(long start) throws IOException
+        {
+            windowStart_ = start;
+            window_ = channel_.map(FileChannel.MapMode.READ_ONLY, start, Math.min(WINDOW_BYTES, fileSize_ - start));
+        }
+
+        @Override
+        public void close() throws IOException { channel_.close(); }
+    }
+
+    /**
+     * Set of keys in a Fenwick tree of counts over the distinct keys of trace; Insert, Delete, Select, and Rank
+     * take O(log m) for m distinct keys
+     */
+    private static final class FenwickChecker
+    {
+        private final long[] keys;      // distinct keys in increasing order
+        private final int[] tree;       // tree[i] counts keys[j - 1] for j in (i - lowbit(i), i]
+        private final boolean[] present;
+        private int size = 0;
+
+        FenwickChecker(long[] keys)
+        {
+            this.keys = keys;
+            tree = new int[keys.length + 1];
+            present = new boolean[keys.length];
+        }
+
+        long execute(byte command, long key)
+        {
+            if (command == 'S') return select(key);
+            int index = Arrays.binarySearch(keys, key);     // every key but of Select is found
+            switch (command)
+            {
+                case 'I':
+                    if (present[index]) return 0;
+                    present[index] = true;
+                    add(index + 1, 1);
+                    return key;
+                case 'D':
+                    if (!present[index]) return 0;
+                    present[index] = false;
+                    add(index + 1, -1);
+                    return key;
+                default:
+                    return present[index] ? prefix(index + 1) : 0;
+            }
+        }
+
+        private void add(int i, int delta)
+        {
+            for ( ; i < tree.length ; i += i & -i) tree[i] += delta;
+            size += delta;
+        }
+
+        // number of keys in keys[0, i)
+        private int prefix(int i)
+        {
+            int sum = 0;
+            for ( ; i > 0 ; i -= i & -i) sum += tree[i];
+            return sum;
+        }
+
+        // i-th key, by descending the implicit tree from its highest power of 2
+        private long select(long i)
+        {
+            if (i < 1 || i > size) return 0;
+            int index = 0;
+            for (int step = Integer.highestOneBit(tree.length - 1) ; step > 0 ; step >>= 1)
+            {
+                if (index + step < tree.length && tree[index + step] < i)
+                {
+                    index += step;
+                    i -= tree[index];
+                }
+            }
+            return keys[index];     // keys[index] is (index + 1)-th in Fenwick order
+        }
+    }
+}
@@ -0,0 +1,379 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+
+/**
+ * Order statistic service on localhost, so that processes share one tree through the I/D/S/R text protocol. <br>
+ * <br>
+ * A request is a line in the format of OS_RBTreeTest (e.g. "I 5", "S 3") with any long key, and its response is
+ * a line of the result as OS_RBTreeReplay gives it: the key for successful Insert and Delete, the item for Select,
+ * the rank for Rank, and 0 otherwise (e.g. instead of null). A malformed request gets "ERROR", so that responses
+ * still pair with requests. <br>
+ * <br>
+ * One thread runs an NIO event loop and is the only thread that touches the tree (a LongOS_RBTree), so that no
+ * lock is needed. Clients may pipeline requests: in every select round, the loop reads what each ready connection
+ * has sent, executes its complete requests as a batch, and writes their responses in order with one write.
+ * A connection that does not read its responses is not read from until they are written, so that its buffers
+ * stay bounded. <br>
+ * <br>
+ * Usage: <br>
+ *      java OS_RBTreeServer [port]     port on loopback address, 7070 by default
+ */
+public class OS_RBTreeServer implements Runnable, Closeable
+{
+    public static final int DEFAULT_PORT = 7070;
+    private static final int BUFFER_BYTES = 1 << 16;    // input and output buffer of each connection
+    private static final int MAX_LINE_BYTES = 64;       // longer requests are invalid
+    private static final int MAX_RESPONSE_BYTES = 21;   // "-9223372036854775808\n"
+    private static final long ACCEPT_BACKOFF_MS = 100;  // pause of accepting after accept fails, e.g. on EMFILE
+    private static final byte[] ERROR = "ERROR\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] MIN_LONG = "-9223372036854775808\n".getBytes(StandardCharsets.US_ASCII);
+
+    private final LongOS_RBTree tree_;
+    private final Selector selector_;
+    private final ServerSocketChannel server_;
+    private final SelectionKey acceptKey_;
+    private final Object lock_ = new Object();          // orders start of event loop and close
+    private volatile boolean closed_ = false;
+    private volatile boolean running_ = false;          // whether event loop has started
+    private boolean acceptPaused_ = false;              // whether accepting is paused after accept failed
+    private long acceptResume_;                         // nanoTime when accepting resumes, while paused
+    private volatile long commands_ = 0;                // written by event loop only
+    private volatile long batches_ = 0;                 // select rounds that executed any command
+
+    // Constructors
+    public OS_RBTreeServer(int port) throws IOException { this(new LongOS_RBTree(), port); }
+
+    /**
+     * Bind server to port of loopback address; call run, or start, to serve
+     * @param tree tree to serve; must not be used by other threads while server runs
+     * @param port port to listen, or 0 for any free port
+     * @throws IOException if port cannot be bound
+     */
+    public OS_RBTreeServer(LongOS_RBTree tree, int port) throws IOException
+    {
+        tree_ = tree;
+        selector_ = Selector.open();
+        server_ = ServerSocketChannel.open();
+        try
+        {
+            server_.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+            server_.configureBlocking(false);
+            acceptKey_ = server_.register(selector_, SelectionKey.OP_ACCEPT);
+        }
+        catch (IOException e)
+        {
+            server_.close();
+            selector_.close();
+            throw e;
+        }
+    }
+
+    // Accessors
+    public int port()       { return server_.socket().getLocalPort(); }
+    public long commands()  { return commands_; }
+    public long batches()   { return batches_;  }
+
+    public static void main(String[] args)
+    {
+        int port = DEFAULT_PORT;
+        try
+        {
+            if (args.length == 1) port = Integer.parseInt(args[0]);
+            else if (args.length != 0) throw new IllegalArgumentException();
+        }
+        catch (IllegalArgumentException e)
+        {
+            System.out.println("ERROR: Input format is incorrect.");
+            System.out.println("The command should follow this format: java OS_RBTreeServer [<int>port].");
+            System.exit(1);
+        }
+
+        try (OS_RBTreeServer server = new OS_RBTreeServer(port))
+        {
+            System.out.printf("OS_RBTreeServer listening on %s:%d\n", InetAddress.getLoopbackAddress().getHostAddress(), server.port());
+            server.run();
+        }
+        catch (IOException e)
+        {
+            System.out.println("ERROR: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Run event loop in a new daemon thread
+     * @return thread of event loop
+     */
+    public Thread start()
+    {
+        Thread thread = new Thread(this, "OS_RBTreeServer-" + port());
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Run event loop in this thread until close; returns at once if already closed
+     * @throws UncheckedIOException if selector fails; errors of a connection close only that connection,
+     *         and errors of accepting one (e.g. too many open files) pause accepting for ACCEPT_BACKOFF_MS
+     */
+    @Override
+    public void run()
+    {
+        synchronized (lock_)
+        {
+            if (closed_) return;                // selector is closed already
+            running_ = true;
+        }
+        try
+        {
+            while (!closed_)
+            {
+                selector_.select(resumeAccept());
+                long executed = 0;
+                Iterator<SelectionKey> keys = selector_.selectedKeys().iterator();
+                while (keys.hasNext())
+                {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) continue;
+                    if (key.isAcceptable())
+                    {
+                        accept();
+                        continue;
+                    }
+                    Connection connection = (Connection) key.attachment();
+                    try
+                    {
+                        if (key.isReadable() && connection.channel.read(connection.in) < 0) connection.eof = true;
+                        executed += serve(key, connection);
+                    }
+                    catch (IOException e)   // e.g. connection reset by client
+                    {
+                        closeConnection(key);
+                    }
+                }
+                if (executed > 0)
+                {
+                    commands_ += executed;
+                    batches_++;
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+        finally
+        {
+            for (SelectionKey key : selector_.keys()) if (key.attachment() != null) closeConnection(key);
+            try
+            {
+                selector_.close();
+            }
+            catch (IOException e)
+            {
+                // ignored
+            }
+        }
+    }
+
+    /**
+     * Stop event loop and close all connections
+     */
+    @Override
+    public void close() throws IOException
+    {
+        synchronized (lock_)
+        {
+            closed_ = true;
+            server_.close();
+            if (running_) selector_.wakeup();   // event loop closes connections and selector
+            else selector_.close();
+        }
+    }
+
+    /**
+     * Resume accepting if its pause is over
+     * @return milliseconds to wait in select until pause is over, or 0 to wait without timeout
+     */
+    private long resumeAccept()
+    {
+        if (!acceptPaused_) return 0;
+        long wait = (acceptResume_ - System.nanoTime() + 999_999) / 1_000_000;
+        if (wait > 0) return wait;
+        acceptPaused_ = false;
+        setAccepting(true);
+        return 0;
+    }
+
+    // set whether server key is selected for accept; ignored if server has been closed meanwhile
+    private void setAccepting(boolean accepting)
+    {
+        try
+        {
+            acceptKey_.interestOps(accepting ? SelectionKey.OP_ACCEPT : 0);
+        }
+        catch (CancelledKeyException e)
+        {
+            // ignored; event loop ends
+        }
+    }
+
+    // accept a connection; on failure, close only the new channel and keep serving
+    private void accept()
+    {
+        SocketChannel channel;
+        try
+        {
+            channel = server_.accept();
+        }
+        catch (IOException e)   // e.g. too many open files; pending connection stays queued, so pause accepting
+        {                       // instead of being selected again at once
+            setAccepting(false);
+            acceptPaused_ = true;
+            acceptResume_ = System.nanoTime() + ACCEPT_BACKOFF_MS * 1_000_000;
+            return;
+        }
+        if (channel == null) return;
+        try
+        {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            channel.register(selector_, SelectionKey.OP_READ, new Connection(channel));
+        }
+        catch (IOException e)   // e.g. connection reset by client before set up
+        {
+            try
+            {
+                channel.close();
+            }
+            catch (IOException ignored)
+            {
+                // ignored
+            }
+        }
+    }
+
+    /**
+     * Execute complete requests in input buffer and write their responses, as long as responses can be written
+     * @return number of requests executed
+     */
+    private long serve(SelectionKey key, Connection connection) throws IOException
+    {
+        ByteBuffer in = connection.in, out = connection.out;
+        long executed = 0;
+        while (true)
+        {
+            in.flip();
+            boolean more = false;               // whether requests remain because output buffer is full
+            while (in.hasRemaining())
+            {
+                if (out.remaining() < MAX_RESPONSE_BYTES)
+                {
+                    more = true;
+                    break;
+                }
+                int from = in.position(), lineEnd = from, end = Math.min(in.limit(), from + MAX_LINE_BYTES);
+                while (lineEnd < end && in.get(lineEnd) != '\n') lineEnd++;
+                if (lineEnd == end && end - from == MAX_LINE_BYTES)     // too long; the rest is discarded
+                {
+                    out.put(ERROR);
+                    in.position(in.limit());
+                    connection.eof = true;
+                    break;
+                }
+                if (lineEnd == end && !connection.eof) break;           // wait for the rest of request
+                in.position((lineEnd < end) ? lineEnd + 1 : end);       // last request may end without \n
+                if (lineEnd > from && in.get(lineEnd - 1) == '\r') lineEnd--;
+                long result;
+                try
+                {
+                    result = OS_RBTreeReplay.parseKey(in, from, lineEnd);
+                }
+                catch (NumberFormatException e)
+                {
+                    out.put(ERROR);
+                    continue;
+                }
+                result = OS_RBTreeReplay.execute(tree_, in.get(from), result);
+                putLong(out, result);
+                executed++;
+            }
+            in.compact();
+
+            out.flip();
+            connection.channel.write(out);
+            boolean pending = out.hasRemaining();
+            out.compact();
+            if (pending)                        // wait until client reads responses; stop reading its requests
+            {
+                key.interestOps(SelectionKey.OP_WRITE);
+                return executed;
+            }
+            if (!more) break;
+        }
+        if (connection.eof) closeConnection(key);
+        else key.interestOps(SelectionKey.OP_READ);
+        return executed;
+    }
+
+    // write x in decimal followed by \n
+    private static void putLong(ByteBuffer out, long x)
+    {
+        if (x == Long.MIN_VALUE)
+        {
+            out.put(MIN_LONG);
+            return;
+        }
+        if (x < 0)
+        {
+            out.put((byte) '-');
+            x = -x;
+        }
+        int start = out.position();
+        do
+        {
+            out.put((byte) ('0' + x % 10));
+            x /= 10;
+        }
+        while (x != 0);
+        for (int i = start, j = out.position() - 1 ; i < j ; i++, j--)    // digits were written in reverse
+        {
+            byte c = out.get(i);
+            out.put(i, out.get(j));
+            out.put(j, c);
+        }
+        out.put((byte) '\n');
+    }
+
+    private static void closeConnection(SelectionKey key)
+    {
+        key.cancel();
+        try
+        {
+            key.channel().close();
+        }
+        catch (IOException e)
+        {
+            // ignored
+        }
+    }
+
+    /**
+     * Buffers of a client connection; both are kept in write mode between select rounds
+     */
+    private static final class Connection
+    {
+        final SocketChannel channel;
+        final ByteBuffer in = ByteBuffer.allocate(BUFFER_BYTES);
+        final ByteBuffer out = ByteBuffer.allocate(BUFFER_BYTES);
+        boolean eof = false;            // whether client has shut down its output
+
+        Connection(SocketChannel channel) { this.channel = channel; }
+    }
+}
@@ -0,0 +1,289 @@
+import java.util.*;
+
+/**
+ * NavigableSet view of OS_RBTree, so that it can replace TreeSet without changing call sites. <br>
+ * <br>
+ * Views by headSet, tailSet, subSet, and descendingSet are backed by the same tree, as in TreeSet;
+ * unlike TreeSet, size of a view takes O(log n) by subtree sizes instead of O(n),
+ * and get and indexOf find an item by its position in the view in O(log n). <br>
+ * Items are ordered by their natural ordering, and null is not allowed. <br>
+ * @param <T>
+ */
+public class OS_RBTreeSet<T extends Comparable<T>> extends AbstractSet<T> implements NavigableSet<T>
+{
+    private final OS_RBTree<T> tree_;
+    private final T lo_, hi_;                       // bounds of view, null if unbounded
+    private final boolean loInclusive_, hiInclusive_;
+    private final boolean descending_;
+
+    // Constructors
+    public OS_RBTreeSet() { this(new OS_RBTree<>()); }
+
+    /**
+     * @param tree tree to view; changes of set write through to tree, and vice versa
+     * @throws IllegalArgumentException if tree is multiset
+     */
+    public OS_RBTreeSet(OS_RBTree<T> tree) { this(requireSet(tree), null, false, null, false, false); }
+
+    private OS_RBTreeSet(OS_RBTree<T> tree, T lo, boolean loInclusive, T hi, boolean hiInclusive, boolean descending)
+    {
+        tree_ = tree;
+        lo_ = lo;
+        loInclusive_ = loInclusive;
+        hi_ = hi;
+        hiInclusive_ = hiInclusive;
+        descending_ = descending;
+    }
+
+    private static <T extends Comparable<T>> OS_RBTree<T> requireSet(OS_RBTree<T> tree)
+    {
+        if (tree.isMultiset()) throw new IllegalArgumentException("Multiset tree cannot be viewed as set");
+        return tree;
+    }
+
+    /**
+     * Get number of items in view in O(log n)
+     * @return number of items in view
+     */
+    @Override
+    public int size() { return Math.max(upper() - lower(), 0); }  // empty range like (x, x) counts x twice
+
+    @Override
+    public boolean isEmpty() { return size() == 0; }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean contains(Object o)
+    {
+        T x = (T) o;
+        return inRange(x) && tree_.contains(x);
+    }
+
+    /**
+     * @throws IllegalArgumentException if x is out of range of view
+     */
+    @Override
+    public boolean add(T x)
+    {
+        if (!inRange(x)) throw new IllegalArgumentException("Item out of range");
+        return tree_.insert(x) != null;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean remove(Object o)
+    {
+        T x = (T) o;
+        return inRange(x) && tree_.delete(x) != null;
+    }
+
+    @Override
+    public void clear()
+    {
+        if (lo_ == null && hi_ == null) tree_.clear();
+        else super.clear();         // remove items of view one by one
+    }
+
+    /**
+     * Get item at given position in view in O(log n)
+     * @param index position, starting from 0 at the first item of view (in its order)
+     * @return item at index
+     * @throws IndexOutOfBoundsException if index is not in [0, size())
+     */
+    public T get(int index)
+    {
+        int lower = lower(), upper = upper(), size = Math.max(upper - lower, 0);
+        if (index < 0 || index >= size) throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        return tree_.select(descending_ ? upper - index : lower + index + 1);
+    }
+
+    /**
+     * Get position of item in view in O(log n)
+     * @param o item to find
+     * @return position of o, starting from 0 at the first item of view (in its order), or -1 if o is not in view
+     */
+    @SuppressWarnings("unchecked")
+    public int indexOf(Object o)
+    {
+        T x = (T) o;
+        if (!inRange(x)) return -1;
+        int rank = tree_.rank(x);
+        if (rank == 0) return -1;
+        return descending_ ? upper() - rank : rank - 1 - lower();
+    }
+
+    @Override
+    public Iterator<T> iterator()
+    {
+        if (descending_) return new BoundedIterator(tree_.iteratorFrom(hi_, hiInclusive_, false));
+        return new BoundedIterator(tree_.iteratorFrom(lo_, loInclusive_, true));
+    }
+
+    @Override
+    public Iterator<T> descendingIterator() { return descendingSet().iterator(); }
+
+    @Override
+    public NavigableSet<T> descendingSet() { return new OS_RBTreeSet<>(tree_, lo_, loInclusive_, hi_, hiInclusive_, !descending_); }
+
+    @Override
+    public Comparator<? super T> comparator() { return descending_ ? Collections.reverseOrder() : null; }
+
+    // navigation in order of view
+    @Override public T lower(T x)   { return descending_ ? ceiling(x, false) : floor(x, false); }
+    @Override public T floor(T x)   { return descending_ ? ceiling(x, true) : floor(x, true);   }
+    @Override public T ceiling(T x) { return descending_ ? floor(x, true) : ceiling(x, true);   }
+    @Override public T higher(T x)  { return descending_ ? floor(x, false) : ceiling(x, false); }
+
+    @Override
+    public T first()
+    {
+        T x = descending_ ? highest() : lowest();
+        if (x == null) throw new NoSuchElementException();
+        return x;
+    }
+
+    @Override
+    public T last()
+    {
+        T x = descending_ ? lowest() : highest();
+        if (x == null) throw new NoSuchElementException();
+        return x;
+    }
+
+    @Override
+    public T pollFirst()
+    {
+        T x = descending_ ? highest() : lowest();
+        if (x != null) tree_.delete(x);
+        return x;
+    }
+
+    @Override
+    public T pollLast()
+    {
+        T x = descending_ ? lowest() : highest();
+        if (x != null) tree_.delete(x);
+        return x;
+    }
+
+    // views; bounds are given in order of view
+    @Override
+    public NavigableSet<T> subSet(T fromElement, boolean fromInclusive, T toElement, boolean toInclusive)
+    {
+        checkBound(fromElement, fromInclusive);
+        checkBound(toElement, toInclusive);
+        if (descending_)
+        {
+            if (fromElement.compareTo(toElement) < 0) throw new IllegalArgumentException("fromElement < toElement");
+            return new OS_RBTreeSet<>(tree_, toElement, toInclusive, fromElement, fromInclusive, true);
+        }
+        if (fromElement.compareTo(toElement) > 0) throw new IllegalArgumentException("fromElement > toElement");
+        return new OS_RBTreeSet<>(tree_, fromElement, fromInclusive, toElement, toInclusive, false);
+    }
+
+    @Override
+    public NavigableSet<T> headSet(T toElement, boolean inclusive)
+    {
+        checkBound(toElement, inclusive);
+        if (descending_) return new OS_RBTreeSet<>(tree_, toElement, inclusive, hi_, hiInclusive_, true);
+        return new OS_RBTreeSet<>(tree_, lo_, loInclusive_, toElement, inclusive, false);
+    }
+
+    @Override
+    public NavigableSet<T> tailSet(T fromElement, boolean inclusive)
+    {
+        checkBound(fromElement, inclusive);
+        if (descending_) return new OS_RBTreeSet<>(tree_, lo_, loInclusive_, fromElement, inclusive, true);
+        return new OS_RBTreeSet<>(tree_, fromElement, inclusive, hi_, hiInclusive_, false);
+    }
+
+    @Override public SortedSet<T> subSet(T fromElement, T toElement) { return subSet(fromElement, true, toElement, false); }
+    @Override public SortedSet<T> headSet(T toElement)               { return headSet(toElement, false);                }
+    @Override public SortedSet<T> tailSet(T fromElement)             { return tailSet(fromElement, true);               }
+
+    /**
+     * Check bound of new view; exclusive bound may be equal to exclusive bound of this view
+     * @throws IllegalArgumentException if bound is out of range of this view
+     */
+    private void checkBound(T bound, boolean inclusive)
+    {
+        boolean inRange = inclusive ? inRange(bound)
+                                    : (lo_ == null || bound.compareTo(lo_) >= 0) && (hi_ == null || bound.compareTo(hi_) <= 0);
+        if (!inRange) throw new IllegalArgumentException("Bound out of range");
+    }
+
+    // number of items in tree below view, and up to the end of view
+    private int lower() { return (lo_ == null) ? 0 : tree_.countLess(lo_, !loInclusive_); }
+    private int upper() { return (hi_ == null) ? tree_.treeSize() : tree_.countLess(hi_, hiInclusive_); }
+
+    private boolean tooLow(T x)
+    {
+        if (lo_ == null) return false;
+        int comp = x.compareTo(lo_);
+        return comp < 0 || (comp == 0 && !loInclusive_);
+    }
+
+    private boolean tooHigh(T x)
+    {
+        if (hi_ == null) return false;
+        int comp = x.compareTo(hi_);
+        return comp > 0 || (comp == 0 && !hiInclusive_);
+    }
+
+    private boolean inRange(T x) { return !tooLow(x) && !tooHigh(x); }
+
+    // least and greatest item of view regardless of its direction, or null if view is empty
+    private T lowest()
+    {
+        T item = (lo_ == null) ? tree_.firstItem() : tree_.ceilingItem(lo_, loInclusive_);
+        return (item == null || tooHigh(item)) ? null : item;
+    }
+
+    private T highest()
+    {
+        T item = (hi_ == null) ? tree_.lastItem() : tree_.floorItem(hi_, hiInclusive_);
+        return (item == null || tooLow(item)) ? null : item;
+    }
+
+    // least item of view equal or greater than x (or greater than x, if not inclusive), or null if there is none
+    private T ceiling(T x, boolean inclusive)
+    {
+        if (tooLow(x)) return lowest();
+        T item = tree_.ceilingItem(x, inclusive);
+        return (item == null || tooHigh(item)) ? null : item;
+    }
+
+    private T floor(T x, boolean inclusive)
+    {
+        if (tooHigh(x)) return highest();
+        T item = tree_.floorItem(x, inclusive);
+        return (item == null || tooLow(item)) ? null : item;
+    }
+
+    /**
+     * Iterator of tree that ends at the bound of view
+     */
+    private class BoundedIterator implements Iterator<T>
+    {
+        private final OS_RBTree<T>.NodeIterator iterator;
+
+        BoundedIterator(OS_RBTree<T>.NodeIterator iterator) { this.iterator = iterator; }
+
+        @Override
+        public boolean hasNext()
+        {
+            T next = iterator.peek();
+            return next != null && !(descending_ ? tooLow(next) : tooHigh(next));
+        }
+
+        @Override
+        public T next()
+        {
+            if (!hasNext()) throw new NoSuchElementException();
+            return iterator.next();
+        }
+
+        @Override
+        public void remove() { iterator.remove(); }
+    }
+}
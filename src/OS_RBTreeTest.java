@@ -1,16 +1,23 @@
 import java.io.*;
+import java.nio.file.*;
+import java.util.*;
 
 /**
  * Test class for OS_RBTree. All items are integers between 1 and 999. <br>
  * <br>
  * Get commands from file and execute them line-by-line. <br>
  * Validity of result is checked by separate class using array. <br>
+ * Every command is also executed on the other trees (see variants), whose results and validity are checked
+ * against the same class; after all commands, their items are compared with it, the durable and mapped trees
+ * after reopening their files. Iterators of a multiset of the remaining items are checked as well. <br>
+ * For long traces and keys beyond 1-999, use OS_RBTreeReplay, which runs millions of commands per second. <br>
  * <br>
  * @author 오지현 (자연과학대학 생명과학부, ID: 2017-16544)
  */
 public class OS_RBTreeTest
 {
     public static OS_RBTree<Integer> tree = new OS_RBTree<>();
+    private static Variant[] variants = {};
 
     public static void main(String[] args)
     {
@@ -29,9 +36,12 @@ public class OS_RBTreeTest
         }
 
         String command = "";
+        Path dir = null;    // files of durable and mapped trees
 
         try
         {
+            dir = Files.createTempDirectory("OS_RBTreeTest");
+            variants = variants(dir);
             BufferedReader br = new BufferedReader(new FileReader(filename));
             while ((command = br.readLine()) != null)
             {
@@ -39,6 +49,8 @@ public class OS_RBTreeTest
                 else throw new IllegalArgumentException();
             }
             br.close();
+            checkItems();
+            checkIteratorRemove();
         }
         catch(FileNotFoundException e)
         {
@@ -56,6 +68,10 @@ public class OS_RBTreeTest
             e.printStackTrace();
             System.exit(1);
         }
+        finally
+        {
+            if (dir != null) delete(dir);
+        }
     }
 
     /**
@@ -108,6 +124,18 @@ public class OS_RBTreeTest
                 System.out.printf("ERROR: result of executing command '%s' is incorrect.\n", command);
                 System.exit(1);
             }
+            for (Variant variant : variants)
+            {
+                int result = variant.execute(command.charAt(0), x);
+                if (result != correctResult || !variant.isValid())
+                {
+                    System.out.println(variant);
+                    System.out.printf("%s output: %d\nCorrect output: %d\n", variant.name, result, correctResult);
+                    System.out.printf("ERROR: result of executing command '%s' on %s is incorrect, or its property is broken.\n",
+                                      command, variant.name);
+                    System.exit(1);
+                }
+            }
         }
         catch (IllegalArgumentException e)
         {
@@ -123,12 +151,335 @@ public class OS_RBTreeTest
         }
     }
 
+    /**
+     * Check that items of every variant are those of OS_RBTreeCheck, in increasing order
+     */
+    public static void checkItems() throws IOException
+    {
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 1 ; i <= OS_RBTreeCheck.size() ; i++) expected.add(OS_RBTreeCheck.select(i));
+        for (Variant variant : variants)
+        {
+            List<Integer> items = variant.items();
+            if (!items.equals(expected))
+            {
+                System.out.printf("%s items: %s\nCorrect items: %s\n", variant.name, items, expected);
+                System.out.printf("ERROR: items of %s are incorrect after all commands.\n", variant.name);
+                System.exit(1);
+            }
+        }
+        StringJoiner names = new StringJoiner(", ");
+        for (Variant variant : variants) names.add(variant.name);
+        System.out.printf("%s: OK\n", names);
+    }
+
+    /**
+     * Check removal by iterators of multiset in both directions: each remaining item x is inserted x % 3 + 1 times,
+     * and every other occurrence is removed while iterating, so that first, middle, and last occurrences are removed
+     */
+    public static void checkIteratorRemove()
+    {
+        List<Integer> items = new ArrayList<>();   // occurrences in increasing order
+        for (int i = 1 ; i <= OS_RBTreeCheck.size() ; i++)
+        {
+            int x = OS_RBTreeCheck.select(i);
+            for (int c = x % 3 ; c >= 0 ; c--) items.add(x);
+        }
+        for (boolean ascending : new boolean[] { true, false })
+        {
+            OS_RBTree<Integer> multiset = new OS_RBTree<>(null, true);
+            for (int x : items) multiset.insert(x);
+            List<Integer> expected = new ArrayList<>(items);
+            if (!ascending) Collections.reverse(expected);
+
+            List<Integer> returned = new ArrayList<>(), remaining = new ArrayList<>();
+            Iterator<Integer> it = ascending ? multiset.iterator() : multiset.descendingIterator();
+            for (int k = 0 ; it.hasNext() ; k++)
+            {
+                Integer x = it.next();
+                returned.add(x);
+                if (k % 2 == 0) it.remove();
+                else remaining.add(x);
+            }
+            List<Integer> left = new ArrayList<>();
+            it = ascending ? multiset.iterator() : multiset.descendingIterator();
+            while (it.hasNext()) left.add(it.next());
+
+            if (!returned.equals(expected) || !left.equals(remaining) || multiset.treeSize() != remaining.size()
+                || !multiset.isValid())
+            {
+                System.out.printf("Iterated: %s\nExpected: %s\nRemaining: %s\nExpected: %s\n", returned, expected, left, remaining);
+                System.out.printf("ERROR: removing by %s iterator of multiset is incorrect.\n", ascending ? "ascending" : "descending");
+                System.exit(1);
+            }
+        }
+        System.out.printf("Multiset iterator remove of %d occurrences: OK\n", items.size());
+    }
+
     /**
      * Convert null to 0
      * @param x Integer object
      * @return 0 if x is null, otherwise x as int
      */
     public static int convert(Integer x) { return (x == null) ? 0 : x; } // OS_RBTree returns null instead of 0
+
+    // delete directory and its files
+    private static void delete(Path dir)
+    {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir))
+        {
+            for (Path file : files) if (Files.isDirectory(file)) delete(file); else Files.delete(file);
+            Files.delete(dir);
+        }
+        catch (IOException e)
+        {
+            // ignored; directory is temporary
+        }
+    }
+
+    /**
+     * Tree other than OS_RBTree on which commands are executed; results are as of OS_RBTreeCheck (0 instead of null)
+     */
+    private abstract static class Variant
+    {
+        final String name;
+
+        Variant(String name) { this.name = name; }
+
+        abstract int insert(int x);
+        abstract int delete(int x);
+        abstract int select(int i);
+        abstract int rank(int x);
+        abstract boolean isValid();
+
+        /**
+         * Get items after all commands; trees stored in files are reopened first
+         * @return items in increasing order
+         */
+        abstract List<Integer> items() throws IOException;
+
+        int execute(char operation, int x)
+        {
+            switch (operation)
+            {
+                case 'I': return insert(x);
+                case 'D': return delete(x);
+                case 'S': return select(x);
+                default:  return rank(x);
+            }
+        }
+    }
+
+    /**
+     * Create variants: primitive, persistent, B+-tree, memory-mapped, durable, and concurrent trees, OS_RBTree
+     * with finger search and node recycling, its snapshot, and its NavigableSet view
+     * @param dir directory for files of durable and mapped trees
+     */
+    private static Variant[] variants(Path dir) throws IOException
+    {
+        Path mappedFile = dir.resolve("mapped"), durableDir = dir.resolve("durable");
+        return new Variant[] {
+            new Variant("IntOS_RBTree")
+            {
+                final IntOS_RBTree t = new IntOS_RBTree();
+                @Override int insert(int x)           { return t.insert(x) ? x : 0;                       }
+                @Override int delete(int x)           { return t.delete(x) ? x : 0;                       }
+                @Override int select(int i)           { return (i <= t.treeSize()) ? t.select(i) : 0;     }
+                @Override int rank(int x)             { return t.rank(x);                                 }
+                @Override boolean isValid()           { return t.isValid();                               }
+                @Override List<Integer> items()
+                {
+                    List<Integer> items = new ArrayList<>();
+                    for (int i = 1 ; i <= t.treeSize() ; i++) items.add(t.select(i));
+                    return items;
+                }
+                @Override public String toString() { return t.toString(); }
+            },
+            new Variant("LongOS_RBTree")
+            {
+                final LongOS_RBTree t = new LongOS_RBTree();
+                @Override int insert(int x)           { return t.insert(x) ? x : 0;                       }
+                @Override int delete(int x)           { return t.delete(x) ? x : 0;                       }
+                @Override int select(int i)           { return (i <= t.treeSize()) ? (int) t.select(i) : 0; }
+                @Override int rank(int x)             { return t.rank(x);                                 }
+                @Override boolean isValid()           { return t.isValid();                               }
+                @Override List<Integer> items()
+                {
+                    List<Integer> items = new ArrayList<>();
+                    for (int i = 1 ; i <= t.treeSize() ; i++) items.add((int) t.select(i));
+                    return items;
+                }
+                @Override public String toString() { return t.toString(); }
+            },
+            new Variant("MappedLongOS_RBTree")
+            {
+                MappedLongOS_RBTree t = MappedLongOS_RBTree.open(mappedFile);
+                @Override int insert(int x)           { return t.insert(x) ? x : 0;                       }
+                @Override int delete(int x)           { return t.delete(x) ? x : 0;                       }
+                @Override int select(int i)           { return (i <= t.treeSize()) ? (int) t.select(i) : 0; }
+                @Override int rank(int x)             { return t.rank(x);                                 }
+                @Override boolean isValid()           { return t.isValid();                               }
+                @Override List<Integer> items() throws IOException
+                {
+                    t.close();
+                    t = MappedLongOS_RBTree.open(mappedFile);
+                    List<Integer> items = new ArrayList<>();
+                    for (int i = 1 ; i <= t.treeSize() ; i++) items.add((int) t.select(i));
+                    boolean valid = t.isValid();
+                    t.close();
+                    return valid ? items : null;
+                }
+                @Override public String toString() { return t.toString(); }
+            },
+            new Variant("PersistentOS_RBTree")
+            {
+                PersistentOS_RBTree<Integer> t = PersistentOS_RBTree.empty(), previous = t;
+                int previousSize = 0;
+                int update(PersistentOS_RBTree<Integer> next, int x)
+                {
+                    previous = t;
+                    previousSize = t.treeSize();
+                    t = next;
+                    return (next != previous) ? x : 0;
+                }
+                @Override int insert(int x)           { return update(t.insert(x), x);                    }
+                @Override int delete(int x)           { return update(t.delete(x), x);                    }
+                @Override int select(int i)           { return convert(t.select(i));                      }
+                @Override int rank(int x)             { return t.rank(x);                                 }
+                @Override boolean isValid()           { return t.isValid() && previous.isValid() && previous.treeSize() == previousSize; }
+                @Override List<Integer> items()
+                {
+                    List<Integer> items = new ArrayList<>();
+                    for (int x : t) items.add(x);
+                    return items;
+                }
+                @Override public String toString() { return t.toString(); }
+            },
+            new Variant("OS_BTree")
+            {
+                final OS_BTree<Integer> t = new OS_BTree<>();
+                @Override int insert(int x)           { return convert(t.insert(x));                      }
+                @Override int delete(int x)           { return convert(t.delete(x));                      }
+                @Override int select(int i)           { return convert(t.select(i));                      }
+                @Override int rank(int x)             { return t.rank(x);                                 }
+                @Override boolean isValid()           { return t.isValid();                               }
+                @Override List<Integer> items()
+                {
+                    List<Integer> items = new ArrayList<>();
+                    for (int i = 1 ; i <= t.treeSize() ; i++) items.add(t.select(i));
+                    return items;
+                }
+                @Override public String toString() { return t.toString(); }
+            },
+            new Variant("DurableOS_RBTree")
+            {
+                DurableOS_RBTree<Integer> t = DurableOS_RBTree.open(durableDir, SnapshotCodec.ints());
+                int updates = 0;
+                int update(Integer result)
+                {
+                    try
+                    {
+                        if (++updates % 64 == 0) t.sync();              // some operations are replayed from log,
+                        if (updates % 512 == 0) t.checkpoint();         // and others are in snapshot
+                    }
+                    catch (IOException e)
+                    {
+                        throw new UncheckedIOException(e);
+                    }
+                    return convert(result);
+                }
+                @Override int insert(int x)           { return update(t.insert(x));                       }
+                @Override int delete(int x)           { return update(t.delete(x));                       }
+                @Override int select(int i)           { return convert(t.select(i));                      }
+                @Override int rank(int x)             { return t.rank(x);                                 }
+                @Override boolean isValid()           { return true;                                      }  // checked after reopening
+                @Override List<Integer> items() throws IOException
+                {
+                    t.close();
+                    t = DurableOS_RBTree.open(durableDir, SnapshotCodec.ints());
+                    List<Integer> items = new ArrayList<>();
+                    for (int i = 1 ; i <= t.treeSize() ; i++) items.add(t.select(i));
+                    t.close();
+                    return items;
+                }
+                @Override public String toString() { return t.toString(); }
+            },
+            new Variant("ConcurrentOS_RBTree")
+            {
+                final OS_RBTree<Integer> tree = new OS_RBTree<>();
+                final ConcurrentOS_RBTree<Integer> t = new ConcurrentOS_RBTree<>(tree);
+                @Override int insert(int x)           { return convert(t.insert(x));                      }
+                @Override int delete(int x)           { return convert(t.delete(x));                      }
+                @Override int select(int i)           { return convert(t.select(i));                      }
+                @Override int rank(int x)             { return t.rank(x);                                 }
+                @Override boolean isValid()           { return tree.isValid();                            }
+                @Override List<Integer> items()
+                {
+                    List<Integer> items = new ArrayList<>();
+                    for (int x : tree) items.add(x);
+                    return items;
+                }
+                @Override public String toString() { return t.toString(); }
+            },
+            new Variant("OS_RBTree with finger search and node recycling")
+            {
+                final OS_RBTree<Integer> t = new OS_RBTree<>();
+                {
+                    t.setFingerSearch(true);
+                    t.setNodeRecycling(true);
+                }
+                @Override int insert(int x)           { return convert(t.insert(x));                      }
+                @Override int delete(int x)           { return convert(t.delete(x));                      }
+                @Override int select(int i)           { return convert(t.select(i));                      }
+                @Override int rank(int x)             { return t.rank(x);                                 }
+                @Override boolean isValid()           { return t.isValid();                               }
+                @Override List<Integer> items()
+                {
+                    List<Integer> items = new ArrayList<>();
+                    for (int x : t) items.add(x);
+                    return items;
+                }
+                @Override public String toString() { return t.toString(); }
+            },
+            new Variant("OS_RBTree snapshot")
+            {
+                final OS_RBTree<Integer> t = new OS_RBTree<>();
+                @Override int insert(int x)           { return convert(t.insert(x));                      }
+                @Override int delete(int x)           { return convert(t.delete(x));                      }
+                @Override int select(int i)           { return convert(t.select(i));                      }
+                @Override int rank(int x)             { return t.rank(x);                                 }
+                @Override boolean isValid()           { return t.isValid();                               }
+                @Override List<Integer> items() throws IOException
+                {
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    t.writeSnapshot(out, SnapshotCodec.ints());
+                    OS_RBTree<Integer> loaded = OS_RBTree.readSnapshot(new ByteArrayInputStream(out.toByteArray()),
+                                                                       SnapshotCodec.ints(), null);
+                    List<Integer> items = new ArrayList<>();
+                    for (int x : loaded) items.add(x);
+                    return loaded.isValid() ? items : null;
+                }
+                @Override public String toString() { return t.toString(); }
+            },
+            new Variant("OS_RBTreeSet")
+            {
+                final OS_RBTreeSet<Integer> t = new OS_RBTreeSet<>();
+                @Override int insert(int x)           { return t.add(x) ? x : 0;                          }
+                @Override int delete(int x)           { return t.remove(x) ? x : 0;                       }
+                @Override int select(int i)           { return (i <= t.size()) ? t.get(i - 1) : 0;        }
+                @Override int rank(int x)             { return t.indexOf(x) + 1;                          }
+                @Override boolean isValid()           { return true;                                      }  // tree is checked by items
+                @Override List<Integer> items()
+                {
+                    List<Integer> items = new ArrayList<>(t);
+                    List<Integer> descending = new ArrayList<>(t.descendingSet());
+                    Collections.reverse(descending);
+                    return descending.equals(items) ? items : null;
+                }
+                @Override public String toString() { return t.toString(); }
+            },
+        };
+    }
 }
 
 /**
@@ -186,5 +537,7 @@ class OS_RBTreeCheck
         return rank[x - 1] != rank[x] ? rank[x] : 0;
     }
 
+    public static int size() { return rank[ARRAY_SIZE - 1]; }
+
     public static void clear() { rank = new int[ARRAY_SIZE]; }
 }
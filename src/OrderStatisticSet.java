@@ -0,0 +1,50 @@
+/**
+ * Set of items that supports following operations in O(log n): <br>
+ *      Insert - insert an item to set <br>
+ *      Delete - delete an item from set <br>
+ *      Select - select item of the given order <br>
+ *      Rank   - get rank of the item <br>
+ * <br>
+ * Implemented by OS_RBTree (binary, one node per item) and OS_BTree (wide nodes, fewer cache misses).
+ * @param <T> type of item
+ */
+public interface OrderStatisticSet<T extends Comparable<T>>
+{
+    /**
+     * Insert x in set if x is not in set
+     * @param x item to insert
+     * @return x if x is not in set, otherwise null
+     */
+    T insert(T x);
+
+    /**
+     * Delete x from set if x is in set
+     * @param x item to delete
+     * @return x if x is in set, otherwise null
+     */
+    T delete(T x);
+
+    /**
+     * Select i-th item in set
+     * @param i order, starting from 1
+     * @return i-th item if i is equal or less than the size of set, otherwise null
+     */
+    T select(int i);
+
+    /**
+     * Get rank of x in set
+     * @param x item to get its rank
+     * @return rank of x if x is in set, otherwise 0
+     */
+    int rank(T x);
+
+    /**
+     * @return number of items in set
+     */
+    int treeSize();
+
+    /**
+     * Delete all items
+     */
+    void clear();
+}
@@ -0,0 +1,326 @@
+import java.util.*;
+
+/**
+ * Persistent (immutable) Order statistics Red-Black tree. <br>
+ * <br>
+ * Insert and Delete do not change the tree but return a new version, which copies the O(log n) nodes
+ * on the path to the item and shares all the rest with the old version. So every version is a snapshot
+ * that stays valid forever, and Select and Rank on any version need no locking: a writer may publish
+ * versions through a volatile field while readers keep querying the version they have read. <br>
+ * <br>
+ * Unlike OS_RBTree, nodes have no parent pointer, empty subtree is null instead of a mutable NIL,
+ * and rebalancing builds new nodes instead of rotating items in place.
+ * Insertion follows Okasaki, "Red-Black Trees in a Functional Setting", and deletion follows Kahrs,
+ * "Red-Black Trees with Types". <br>
+ * @param <T>
+ */
+public final class PersistentOS_RBTree<T extends Comparable<T>> implements Iterable<T>
+{
+    private static final PersistentOS_RBTree<?> EMPTY = new PersistentOS_RBTree<>(null);
+
+    private final Node<T> root_;    // null if tree is empty
+
+    private PersistentOS_RBTree(Node<T> root) { root_ = root; }
+
+    /**
+     * Get the empty tree, which is shared by all item types
+     * @return empty tree
+     */
+    @SuppressWarnings("unchecked")
+    public static <T extends Comparable<T>> PersistentOS_RBTree<T> empty() { return (PersistentOS_RBTree<T>) EMPTY; }
+
+    // Accessors
+    public int treeSize()   { return size(root_); }
+
+    /**
+     * Insert x in new version of tree if x is not in tree
+     * @param x item to insert
+     * @return new version containing x, or this tree if x is already in tree
+     */
+    public PersistentOS_RBTree<T> insert(T x)
+    {
+        if (contains(x)) return this;
+        return new PersistentOS_RBTree<>(blacken(insert(root_, x)));
+    }
+
+    /**
+     * Delete x in new version of tree if x is in tree
+     * @param x item to delete
+     * @return new version not containing x, or this tree if x is not in tree
+     */
+    public PersistentOS_RBTree<T> delete(T x)
+    {
+        if (!contains(x)) return this;   // deletion below assumes that x is in tree
+        Node<T> root = delete(root_, x);
+        return (root == null) ? empty() : new PersistentOS_RBTree<>(blacken(root));
+    }
+
+    /**
+     * Select i-th item in tree
+     * @param i order, starting from 1
+     * @return i-th item if i is equal or less than the size of tree, otherwise null
+     */
+    public T select(int i)
+    {
+        if (i > treeSize() || i < 1) return null;  // i is out of range of tree
+
+        Node<T> node = root_;
+        int comp;                       // if node has the item looking for, comp = 0
+        while ((comp = i - (size(node.left) + 1)) != 0)     // rank of node is 1 + left child's size
+        {
+            if (comp > 0)               // node is less than the item looking for
+            {
+                i = comp;               // update i
+                node = node.right;
+            }
+            else node = node.left;      // node is greater than the item looking for
+        }
+        return node.item;
+    }
+
+    /**
+     * Get rank of x in tree
+     * @param x item to get its rank
+     * @return rank of x if x is in tree, otherwise 0
+     */
+    public int rank(T x)
+    {
+        int r = 0;
+        Node<T> node = root_;
+        while (node != null)
+        {
+            int comp = node.item.compareTo(x);
+            if (comp > 0) node = node.left;
+            else if (comp < 0)          // node is less than x
+            {
+                r += size(node.left) + 1;           // x is greater than node and all items of left subtree
+                node = node.right;
+            }
+            else return r + size(node.left) + 1;    // x found
+        }
+        return 0; // x not found
+    }
+
+    /**
+     * Check whether x is in tree
+     * @param x item to find
+     * @return true iff x is in tree
+     */
+    public boolean contains(T x)
+    {
+        Node<T> node = root_;
+        while (node != null)
+        {
+            int comp = node.item.compareTo(x);
+            if (comp == 0) return true;
+            node = (comp > 0) ? node.left : node.right;
+        }
+        return false;
+    }
+
+    /**
+     * Iterate items in increasing order; the version being iterated never changes
+     * @return iterator of all items
+     */
+    @Override
+    public Iterator<T> iterator()
+    {
+        return new Iterator<T>()
+        {
+            private final ArrayDeque<Node<T>> path = new ArrayDeque<>();  // nodes whose right subtree is not visited
+            { pushLeft(root_); }
+
+            private void pushLeft(Node<T> node)
+            {
+                for ( ; node != null ; node = node.left) path.push(node);
+            }
+
+            @Override
+            public boolean hasNext() { return !path.isEmpty(); }
+
+            @Override
+            public T next()
+            {
+                if (path.isEmpty()) throw new NoSuchElementException();
+                Node<T> node = path.pop();
+                pushLeft(node.right);
+                return node.item;
+            }
+        };
+    }
+
+    // insertion
+    private static <T extends Comparable<T>> Node<T> insert(Node<T> node, T x)
+    {
+        if (node == null) return new Node<>(true, null, x, null);
+        int comp = node.item.compareTo(x);
+        if (node.red)
+        {
+            if (comp > 0) return new Node<>(true, insert(node.left, x), node.item, node.right);
+            else return new Node<>(true, node.left, node.item, insert(node.right, x));
+        }
+        if (comp > 0) return balance(insert(node.left, x), node.item, node.right);
+        else return balance(node.left, node.item, insert(node.right, x));
+    }
+
+    /**
+     * Make black node of left, item, and right, resolving double-red problem in left or right
+     * @return balanced node; red if double-red problem has been resolved
+     */
+    private static <T> Node<T> balance(Node<T> left, T item, Node<T> right)
+    {
+        if (isRed(left) && isRed(right))
+            return new Node<>(true, left.blacken(), item, right.blacken());
+        if (isRed(left))
+        {
+            if (isRed(left.left))
+                return new Node<>(true, left.left.blacken(), left.item, new Node<>(false, left.right, item, right));
+            if (isRed(left.right))
+                return new Node<>(true, new Node<>(false, left.left, left.item, left.right.left), left.right.item,
+                                  new Node<>(false, left.right.right, item, right));
+        }
+        if (isRed(right))
+        {
+            if (isRed(right.right))
+                return new Node<>(true, new Node<>(false, left, item, right.left), right.item, right.right.blacken());
+            if (isRed(right.left))
+                return new Node<>(true, new Node<>(false, left, item, right.left.left), right.left.item,
+                                  new Node<>(false, right.left.right, right.item, right.right));
+        }
+        return new Node<>(false, left, item, right);
+    }
+
+    // deletion; x must be in subtree of node
+    private static <T extends Comparable<T>> Node<T> delete(Node<T> node, T x)
+    {
+        int comp = node.item.compareTo(x);
+        if (comp > 0)
+        {
+            if (isBlack(node.left)) return balanceLeft(delete(node.left, x), node.item, node.right);
+            return new Node<>(true, delete(node.left, x), node.item, node.right);
+        }
+        if (comp < 0)
+        {
+            if (isBlack(node.right)) return balanceRight(node.left, node.item, delete(node.right, x));
+            return new Node<>(true, node.left, node.item, delete(node.right, x));
+        }
+        return append(node.left, node.right);   // x found
+    }
+
+    /**
+     * Make node of left, item, and right, where black height of left is one less than that of right
+     * @return node of the same black height as right had, or red one of one less black height
+     */
+    private static <T> Node<T> balanceLeft(Node<T> left, T item, Node<T> right)
+    {
+        if (isRed(left)) return new Node<>(true, left.blacken(), item, right);
+        if (isBlack(right)) return balance(left, item, right.redden());
+        // right is red, and its left child is black
+        return new Node<>(true, new Node<>(false, left, item, right.left.left), right.left.item,
+                          balance(right.left.right, right.item, right.right.redden()));
+    }
+
+    // mirror of balanceLeft
+    private static <T> Node<T> balanceRight(Node<T> left, T item, Node<T> right)
+    {
+        if (isRed(right)) return new Node<>(true, left, item, right.blacken());
+        if (isBlack(left)) return balance(left.redden(), item, right);
+        // left is red, and its right child is black
+        return new Node<>(true, balance(left.left.redden(), left.item, left.right.left), left.right.item,
+                          new Node<>(false, left.right.right, item, right));
+    }
+
+    /**
+     * Concatenate subtrees of deleted node, whose black heights are the same
+     * @return node of all items of left and right
+     */
+    private static <T> Node<T> append(Node<T> left, Node<T> right)
+    {
+        if (left == null) return right;
+        if (right == null) return left;
+        if (left.red && right.red)
+        {
+            Node<T> middle = append(left.right, right.left);
+            if (isRed(middle))
+                return new Node<>(true, new Node<>(true, left.left, left.item, middle.left), middle.item,
+                                  new Node<>(true, middle.right, right.item, right.right));
+            return new Node<>(true, left.left, left.item, new Node<>(true, middle, right.item, right.right));
+        }
+        if (!left.red && !right.red)
+        {
+            Node<T> middle = append(left.right, right.left);
+            if (isRed(middle))
+                return new Node<>(true, new Node<>(false, left.left, left.item, middle.left), middle.item,
+                                  new Node<>(false, middle.right, right.item, right.right));
+            return balanceLeft(left.left, left.item, new Node<>(false, middle, right.item, right.right));
+        }
+        if (right.red) return new Node<>(true, append(left, right.left), right.item, right.right);
+        return new Node<>(true, left.left, left.item, append(left.right, right));
+    }
+
+    // helpers; null is black leaf
+    private static int size(Node<?> node)           { return (node == null) ? 0 : node.size;   }
+    private static boolean isRed(Node<?> node)      { return node != null && node.red;         }
+    private static boolean isBlack(Node<?> node)    { return node != null && !node.red;        }
+    private static <T> Node<T> blacken(Node<T> node) { return (node == null) ? null : node.blacken(); }
+
+    @Override
+    public String toString() { return (root_ == null) ? "empty" : printNode(root_, new StringBuilder()).toString(); }
+
+    // same format as OS_RBTree.toString
+    private static StringBuilder printNode(Node<?> node, StringBuilder sb)
+    {
+        if (node == null) return sb.append("NIL");
+        sb.append('(').append(node.red ? 'R' : 'B').append(' ').append(node.item).append(',');
+        printNode(node.left, sb).append(',');
+        return printNode(node.right, sb).append(')');
+    }
+
+    // debug purpose
+    /**
+     * Return true iff all nodes of tree satisfy order statistics and red-black property
+     * @return whether tree is valid
+     */
+    public boolean isValid() { return !isRed(root_) && blackHeight(root_) != -1; }
+
+    /**
+     * Used to check tree properties
+     * @param node node to get black height
+     * @return -1 if node or any of its descendant is invalid, otherwise black height considering node as root
+     */
+    private static int blackHeight(Node<?> node)
+    {
+        if (node == null) return 0;
+        int leftHeight = blackHeight(node.left);
+        int rightHeight = blackHeight(node.right);
+        if (leftHeight == -1 || rightHeight == -1 ||
+            leftHeight != rightHeight ||                                    // red-black property
+            node.size != size(node.left) + size(node.right) + 1 ||          // order statistics
+            (node.red && (isRed(node.left) || isRed(node.right))))          // no double-red
+            return -1;
+        else return leftHeight + (node.red ? 0 : 1);
+    }
+
+    /**
+     * Immutable node; size is computed on construction
+     */
+    private static final class Node<T>
+    {
+        final boolean red;
+        final Node<T> left, right;
+        final T item;
+        final int size;
+
+        Node(boolean red, Node<T> left, T item, Node<T> right)
+        {
+            this.red = red;
+            this.left = left;
+            this.item = item;
+            this.right = right;
+            this.size = size(left) + size(right) + 1;
+        }
+
+        Node<T> blacken()   { return red ? new Node<>(false, left, item, right) : this; }
+        Node<T> redden()    { return red ? this : new Node<>(true, left, item, right); }
+    }
+}
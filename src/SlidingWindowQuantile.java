@@ -0,0 +1,297 @@
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * Exact quantiles of a sliding window over a stream of timestamped long values. <br>
+ * <br>
+ * A value is kept until it is older than the time window or more recent values fill the count window;
+ * quantile (e.g. median, p99) and percentile of a value take O(log n) by Select and Rank of Order statistics
+ * Red-Black tree, and add takes O(log n) including eviction. <br>
+ * <br>
+ * Values are kept in a tree of (value, arrival number) pairs, so that equal values are distinct items, and in a
+ * ring buffer in arrival order, from which the oldest are evicted. Both are primitive arrays (see ArrayOS_RBTree)
+ * that grow only when the window holds more values than ever before, so that add and addAll do not allocate
+ * in steady state. <br>
+ * This class is not thread-safe.
+ */
+public class SlidingWindowQuantile
+{
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final long timeWindow_;     // values at least this much older than the latest time are evicted
+    private final int countWindow_;     // at most this many latest values are kept
+    private final PairTree tree_;
+    private long[] times_, values_;     // ring buffer in arrival order; length is power of 2
+    private int head_ = 0;              // index of the oldest value in ring buffer
+    private int size_ = 0;
+    private long first_ = 0;            // arrival number of the oldest value
+    private long now_ = Long.MIN_VALUE; // latest time given
+
+    /**
+     * @param timeWindow length of time window; Long.MAX_VALUE for no time window
+     * @param countWindow maximum number of values kept; Integer.MAX_VALUE for no count window
+     */
+    public SlidingWindowQuantile(long timeWindow, int countWindow)
+    {
+        if (timeWindow <= 0 || countWindow <= 0) throw new IllegalArgumentException("Window must be positive");
+        timeWindow_ = timeWindow;
+        countWindow_ = countWindow;
+        int capacity = 1;
+        while (capacity < Math.min(countWindow, INITIAL_CAPACITY)) capacity <<= 1;
+        tree_ = new PairTree(capacity);
+        times_ = new long[capacity];
+        values_ = new long[capacity];
+    }
+
+    public static SlidingWindowQuantile ofTime(long timeWindow) { return new SlidingWindowQuantile(timeWindow, Integer.MAX_VALUE); }
+    public static SlidingWindowQuantile ofCount(int countWindow) { return new SlidingWindowQuantile(Long.MAX_VALUE, countWindow); }
+
+    // Accessors
+    public int size()   { return size_; }   // number of values in window
+    public long now()   { return now_;  }
+
+    /**
+     * Add value at given time, evicting values out of window
+     * @param time time of value; not less than any time given before
+     * @param value value to add
+     * @throws IllegalArgumentException if time is less than time given before
+     */
+    public void add(long time, long value)
+    {
+        advance(time);
+        if (size_ == countWindow_) evict();
+        push(time, value);
+    }
+
+    /**
+     * Add values[from, to) at times[from, to), evicting values out of window once for the whole batch;
+     * values of batch that would be evicted by the end of batch are not added at all
+     * @param times times of values; non-decreasing, and not less than any time given before
+     * @param values values to add
+     * @throws IllegalArgumentException if times are decreasing
+     */
+    public void addAll(long[] times, long[] values, int from, int to)
+    {
+        if (from >= to) return;
+        long previous = now_;
+        for (int i = from ; i < to ; i++)
+        {
+            if (times[i] < previous) throw new IllegalArgumentException("Time " + times[i] + " is less than " + previous);
+            previous = times[i];
+        }
+        advance(times[to - 1]);
+
+        int start = Math.max(from, to - countWindow_);      // values before start are pushed out by later ones
+        while (start < to && isExpired(times[start])) start++;
+        for (int i = start ; i < to ; i++)
+        {
+            if (size_ == countWindow_) evict();
+            push(times[i], values[i]);
+        }
+    }
+
+    /**
+     * Move time forward without adding value, evicting values out of time window
+     * @param time current time; not less than any time given before
+     * @throws IllegalArgumentException if time is less than time given before
+     */
+    public void advance(long time)
+    {
+        if (time < now_) throw new IllegalArgumentException("Time " + time + " is less than " + now_);
+        now_ = time;
+        while (size_ > 0 && isExpired(times_[head_])) evict();
+    }
+
+    /**
+     * Get q-quantile of values in window by nearest rank: the smallest value whose rank is at least q * size()
+     * @param q quantile in [0, 1], e.g. 0.5 for median and 0.99 for p99
+     * @return q-quantile; the minimum if q is 0
+     * @throws NoSuchElementException if window is empty
+     */
+    public long quantile(double q)
+    {
+        if (!(q >= 0 && q <= 1)) throw new IllegalArgumentException("Quantile: " + q);
+        if (size_ == 0) throw new NoSuchElementException("Window is empty");
+        int rank = (int) Math.ceil(q * size_);
+        return tree_.select(Math.max(rank, 1));
+    }
+
+    /**
+     * Get quantiles of values in window without allocation
+     * @param qs quantiles in [0, 1]
+     * @param out array to store quantiles, out[i] for qs[i]
+     * @throws NoSuchElementException if window is empty
+     */
+    public void quantiles(double[] qs, long[] out)
+    {
+        for (int i = 0 ; i < qs.length ; i++) out[i] = quantile(qs[i]);
+    }
+
+    public long median() { return quantile(0.5); }
+
+    /**
+     * Count values in window that are equal or less than x
+     * @param x value to compare
+     * @return number of values equal or less than x
+     */
+    public int countAtMost(long x) { return tree_.countAtMost(x); }
+
+    /**
+     * Get percentile of x: percentage of values in window that are equal or less than x
+     * @param x value to compare
+     * @return percentile in [0, 100]
+     * @throws NoSuchElementException if window is empty
+     */
+    public double percentile(long x)
+    {
+        if (size_ == 0) throw new NoSuchElementException("Window is empty");
+        return 100.0 * tree_.countAtMost(x) / size_;
+    }
+
+    /**
+     * Remove all values; time is kept, so that later times must not be less than it
+     */
+    public void clear()
+    {
+        tree_.clear();
+        first_ += size_;
+        head_ = size_ = 0;
+    }
+
+    // whether value at given time is out of time window; difference of times is compared as unsigned not to overflow
+    private boolean isExpired(long time)
+    {
+        return timeWindow_ != Long.MAX_VALUE && Long.compareUnsigned(now_ - time, timeWindow_) >= 0;
+    }
+
+    private void push(long time, long value)
+    {
+        if (size_ == times_.length) grow();
+        int tail = (head_ + size_) & (times_.length - 1);
+        times_[tail] = time;
+        values_[tail] = value;
+        tree_.insert(value, first_ + size_);
+        size_++;
+    }
+
+    // evict the oldest value
+    private void evict()
+    {
+        tree_.delete(values_[head_], first_);
+        head_ = (head_ + 1) & (times_.length - 1);
+        first_++;
+        size_--;
+    }
+
+    // double ring buffer, moving values to start from index 0
+    private void grow()
+    {
+        int capacity = 2 * times_.length;
+        long[] times = new long[capacity], values = new long[capacity];
+        int firstPart = times_.length - head_;
+        System.arraycopy(times_, head_, times, 0, firstPart);
+        System.arraycopy(times_, 0, times, firstPart, head_);
+        System.arraycopy(values_, head_, values, 0, firstPart);
+        System.arraycopy(values_, 0, values, firstPart, head_);
+        times_ = times;
+        values_ = values;
+        head_ = 0;
+    }
+
+    @Override
+    public String toString() { return "SlidingWindowQuantile[size=" + size_ + ", now=" + now_ + "]"; }
+
+    // debug purpose
+    public boolean isValid() { return tree_.isValid() && tree_.treeSize() == size_; }
+
+    /**
+     * Order statistics Red-Black tree of (value, arrival number) pairs, ordered by value and then arrival number
+     */
+    private static final class PairTree extends ArrayOS_RBTree
+    {
+        private long[] values, arrivals;
+
+        PairTree(int capacity)
+        {
+            super(capacity);
+            values = new long[size.length];
+            arrivals = new long[size.length];
+        }
+
+        // compare pair of node with (value, arrival)
+        private int compare(int node, long value, long arrival)
+        {
+            int comp = Long.compare(values[node], value);
+            return (comp != 0) ? comp : Long.compare(arrivals[node], arrival);
+        }
+
+        // insert pair, which is not in tree since arrival numbers are unique
+        void insert(long value, long arrival)
+        {
+            int node = NIL;
+            int child = root();
+            boolean isLeft = true;  // whether child is left_ of node
+            while (child != NIL)
+            {
+                node = child;
+                child = (isLeft = (compare(node, value, arrival) > 0)) ? left[node] : right[node];
+            }
+            child = insertNode(node, isLeft);
+            values[child] = value;
+            arrivals[child] = arrival;
+            fixInsert(child);
+        }
+
+        // delete pair, which is in tree
+        void delete(long value, long arrival)
+        {
+            int node = root();
+            int comp;
+            while ((comp = compare(node, value, arrival)) != 0) node = (comp > 0) ? left[node] : right[node];
+            deleteNode(node);
+        }
+
+        long select(int i) { return values[selectNode(i)]; }
+
+        int countAtMost(long x)
+        {
+            int r = 0;
+            int node = root();
+            while (node != NIL)
+            {
+                if (values[node] > x) node = left[node];
+                else                    // node and its left subtree are at most x
+                {
+                    r += size[left[node]] + 1;
+                    node = right[node];
+                }
+            }
+            return r;
+        }
+
+        @Override
+        void swapItems(int a, int b)
+        {
+            long value = values[a];
+            values[a] = values[b];
+            values[b] = value;
+            long arrival = arrivals[a];
+            arrivals[a] = arrivals[b];
+            arrivals[b] = arrival;
+        }
+
+        @Override
+        void copyItem(int to, int from)
+        {
+            values[to] = values[from];
+            arrivals[to] = arrivals[from];
+        }
+
+        @Override
+        void growItems(int capacity)
+        {
+            values = Arrays.copyOf(values, capacity);
+            arrivals = Arrays.copyOf(arrivals, capacity);
+        }
+    }
+}
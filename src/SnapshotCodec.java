@@ -0,0 +1,137 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encoding of items in snapshot of OS_RBTree (see OS_RBTree.writeSnapshot). <br>
+ * <br>
+ * Items are written in increasing order, and each item is encoded relative to the previous one,
+ * so that numbers take only as many bytes as their gaps need. <br>
+ * <br>
+ * @param <T> type of item
+ */
+public interface SnapshotCodec<T>
+{
+    /**
+     * Write item
+     * @param out output
+     * @param previous item written just before, or null for the first item
+     * @param item item to write; greater than previous
+     */
+    void write(DataOutput out, T previous, T item) throws IOException;
+
+    /**
+     * Read item written by write
+     * @param in input
+     * @param previous item read just before, or null for the first item
+     * @return item
+     */
+    T read(DataInput in, T previous) throws IOException;
+
+    /**
+     * Integers as varint of gap from previous item; the first item is zigzag-encoded
+     * @return codec of Integer
+     */
+    static SnapshotCodec<Integer> ints()
+    {
+        return new SnapshotCodec<Integer>()
+        {
+            public void write(DataOutput out, Integer previous, Integer item) throws IOException
+            {
+                writeVarLong(out, (previous == null) ? zigzag(item) : (long) item - previous);
+            }
+            public Integer read(DataInput in, Integer previous) throws IOException
+            {
+                long x = readVarLong(in);
+                return (int) ((previous == null) ? unzigzag(x) : previous + x);
+            }
+        };
+    }
+
+    /**
+     * Longs as varint of gap from previous item; the first item is zigzag-encoded
+     * @return codec of Long
+     */
+    static SnapshotCodec<Long> longs()
+    {
+        return new SnapshotCodec<Long>()
+        {
+            public void write(DataOutput out, Long previous, Long item) throws IOException
+            {
+                writeVarLong(out, (previous == null) ? zigzag(item) : item - previous);  // gap is unsigned
+            }
+            public Long read(DataInput in, Long previous) throws IOException
+            {
+                long x = readVarLong(in);
+                return (previous == null) ? unzigzag(x) : previous + x;
+            }
+        };
+    }
+
+    /**
+     * Strings as length of common prefix with previous item, followed by the rest in UTF-8
+     * @return codec of String
+     */
+    static SnapshotCodec<String> strings()
+    {
+        return new SnapshotCodec<String>()
+        {
+            public void write(DataOutput out, String previous, String item) throws IOException
+            {
+                int common = 0;
+                if (previous != null)
+                {
+                    int max = Math.min(previous.length(), item.length());
+                    while (common < max && previous.charAt(common) == item.charAt(common)) common++;
+                    if (common > 0 && Character.isHighSurrogate(item.charAt(common - 1))) common--;    // keep pair whole
+                }
+                byte[] rest = item.substring(common).getBytes(StandardCharsets.UTF_8);
+                writeVarLong(out, common);
+                writeVarLong(out, rest.length);
+                out.write(rest);
+            }
+            public String read(DataInput in, String previous) throws IOException
+            {
+                long common = readVarLong(in), length = readVarLong(in);
+                if (common > ((previous == null) ? 0 : previous.length()) || length > Integer.MAX_VALUE)
+                    throw new IOException("Malformed string");
+                byte[] rest = new byte[(int) length];
+                in.readFully(rest);
+                String suffix = new String(rest, StandardCharsets.UTF_8);
+                return (common == 0) ? suffix : previous.substring(0, (int) common) + suffix;
+            }
+        };
+    }
+
+    /**
+     * Write x as unsigned varint: 7 bits per byte from the lowest, with the high bit set on all bytes but the last
+     */
+    static void writeVarLong(DataOutput out, long x) throws IOException
+    {
+        while ((x & ~0x7FL) != 0)
+        {
+            out.writeByte((int) (x & 0x7F) | 0x80);
+            x >>>= 7;
+        }
+        out.writeByte((int) x);
+    }
+
+    /**
+     * Read unsigned varint written by writeVarLong
+     * @throws IOException if varint is longer than 10 bytes
+     */
+    static long readVarLong(DataInput in) throws IOException
+    {
+        long x = 0;
+        for (int shift = 0 ; shift < 64 ; shift += 7)
+        {
+            int b = in.readUnsignedByte();
+            x |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return x;
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    // map signed to unsigned so that numbers of small magnitude take few bytes
+    static long zigzag(long x)      { return (x << 1) ^ (x >> 63);    }
+    static long unzigzag(long x)    { return (x >>> 1) ^ -(x & 1);    }
+}